@@ -0,0 +1,59 @@
+package org.cheminfo.scripting.image;
+
+/**
+ * Counts the distinct colors of RGB pixels with a bitset of all the possible
+ * colors: 2^24 bits (2 MB) for the exact colors, 2^15 bits (4 KB) when the
+ * colors are reduced to 5 bits per channel. The memory does not depend on the
+ * size of the images, and the pixels of several images can be added to the
+ * same counter.
+ */
+public class ColorCounter {
+	private final int bits;
+	private final long[] seen;
+	private int count = 0;
+
+	/**
+	 * @param bits
+	 *            24 for the exact colors, 15 for 5 bits per channel
+	 */
+	public ColorCounter(int bits) {
+		if (bits != 24 && bits != 15)
+			throw new IllegalArgumentException(
+					"The colors must have 24 or 15 bits: " + bits);
+		this.bits = bits;
+		this.seen = new long[(1 << bits) >> 6];
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	/**
+	 * @param pixels
+	 *            RGB pixels, the alpha is ignored
+	 */
+	public void add(int[] pixels) {
+		long[] seen = this.seen;
+		int count = this.count;
+		boolean exact = bits == 24;
+		for (int i = 0; i < pixels.length; i++) {
+			int c = pixels[i];
+			int color = exact ? c & 0xffffff : ((c >> 9) & 0x7c00)
+					| ((c >> 6) & 0x3e0) | ((c >> 3) & 0x1f);
+			long bit = 1L << (color & 63);
+			int word = color >> 6;
+			if ((seen[word] & bit) == 0) {
+				seen[word] |= bit;
+				count++;
+			}
+		}
+		this.count = count;
+	}
+
+	/**
+	 * @return the number of distinct colors added
+	 */
+	public int getCount() {
+		return count;
+	}
+}
@@ -11,9 +11,9 @@ import ij.plugin.filter.ThresholdToSelection;
 import ij.process.AutoThresholder;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 
 import java.awt.Color;
 import java.awt.Polygon;
@@ -28,6 +28,7 @@ import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.WritableRaster;
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Locale;
@@ -36,10 +37,18 @@ import java.util.Vector;
 import javax.imageio.ImageIO;
 
 import org.cheminfo.function.scripting.SecureFileManager;
+import org.cheminfo.scripting.image.extraction.BinaryMorphology;
+import org.cheminfo.scripting.image.extraction.ConnectedComponents;
+import org.cheminfo.scripting.image.extraction.DistanceTransform;
 import org.cheminfo.scripting.image.extraction.EPolygon;
+import org.cheminfo.scripting.image.extraction.Particle;
+import org.cheminfo.scripting.image.extraction.ParticleFinder;
+import org.cheminfo.scripting.image.extraction.RunLengthMask;
+import org.cheminfo.scripting.image.extraction.Watershed;
 import org.cheminfo.scripting.image.filters.InvariantFeatureHistogramFilter;
 import org.cheminfo.scripting.image.filters.LocalBinaryPartitionFilter;
 import org.cheminfo.scripting.image.filters.TamutaTextureFilter;
+import org.cheminfo.scripting.image.filters.TextureRegion;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -369,6 +378,193 @@ public class EIJ extends ImagePlus implements Cloneable {
 	}
 	
 	
+	/**
+	 * Erodes this mask by a square of side 2*radius+1, the selected pixels
+	 * are the ones between the thresholds, or the ones that are not 0. The
+	 * result is a binary mask whose selected pixels are 255.
+	 * 
+	 * @param radius
+	 * @return this mask
+	 */
+	public EIJ erode(int radius) {
+		return morphology("erode", radius);
+	}
+
+	/**
+	 * Dilates this mask by a square of side 2*radius+1
+	 * 
+	 * @see #erode(int)
+	 */
+	public EIJ dilate(int radius) {
+		return morphology("dilate", radius);
+	}
+
+	/**
+	 * Erosion followed by a dilation, removes what is narrower than the square
+	 * 
+	 * @see #erode(int)
+	 */
+	public EIJ open(int radius) {
+		return morphology("open", radius);
+	}
+
+	/**
+	 * Dilation followed by an erosion, fills what is narrower than the square
+	 * 
+	 * @see #erode(int)
+	 */
+	public EIJ close(int radius) {
+		return morphology("close", radius);
+	}
+
+	/**
+	 * Selects the background that is surrounded by the mask
+	 * 
+	 * @see #erode(int)
+	 */
+	public EIJ fillHoles() {
+		return morphology("fillHoles", 0);
+	}
+
+	/**
+	 * Removes the objects of the mask that have less than minSurface pixels
+	 * 
+	 * @see #erode(int)
+	 */
+	public EIJ removeSmallObjects(int minSurface) {
+		return morphology("removeSmallObjects", minSurface);
+	}
+
+	private EIJ morphology(String method, int value) {
+		try {
+			BinaryMorphology morphology = new BinaryMorphology(getWidth(), getHeight());
+			byte[] mask = BinaryMorphology.select(getProcessor());
+			if (method.equals("erode")) {
+				mask = morphology.erode(mask, value);
+			} else if (method.equals("dilate")) {
+				mask = morphology.dilate(mask, value);
+			} else if (method.equals("open")) {
+				mask = morphology.open(mask, value);
+			} else if (method.equals("close")) {
+				mask = morphology.close(mask, value);
+			} else if (method.equals("fillHoles")) {
+				mask = morphology.fillHoles(mask);
+			} else {
+				mask = morphology.removeSmallObjects(mask, value,
+						ConnectedComponents.EIGHT);
+			}
+			setBinaryMask(mask);
+			return this;
+		} catch (Exception ex) {
+			ij.appendError("EIJ::" + method, "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces the image by a mask whose selected pixels are 255
+	 * 
+	 * @param mask
+	 *            1 for the selected pixels, 0 otherwise
+	 */
+	private void setBinaryMask(byte[] mask) {
+		for (int i = 0; i < mask.length; i++) {
+			if (mask[i] != 0)
+				mask[i] = (byte) 255;
+		}
+		ByteProcessor binary = new ByteProcessor(getWidth(), getHeight(), mask, null);
+		binary.setThreshold(255, 255, ImageProcessor.RED_LUT);
+		this.setProcessor(binary);
+	}
+
+	public EIJ watershed() {
+		return watershed(null);
+	}
+
+	/**
+	 * Separates the touching objects of this mask along the lines of the
+	 * watershed of its distance map. The result is a binary mask whose
+	 * selected pixels are 255, for getRois or split.
+	 * 
+	 * @param options
+	 *            {tolerance: a maximum of the distance map that is less than
+	 *            tolerance pixels above the saddle to a higher one does not
+	 *            make a separate object, 0.5 by default}
+	 * @return this mask
+	 */
+	public EIJ watershed(Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			Watershed watershed = new Watershed(getWidth(), getHeight());
+			watershed.setTolerance(parameters.optDouble("tolerance", watershed.getTolerance()));
+			setBinaryMask(watershed.split(BinaryMorphology.select(getProcessor())));
+			return this;
+		} catch (Exception ex) {
+			ij.appendError("EIJ::watershed", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces this mask by the distance of its selected pixels to the nearest
+	 * pixel that is not selected, in a 32 bits image
+	 * 
+	 * @return this image
+	 */
+	public EIJ distanceMap() {
+		try {
+			DistanceTransform transform = new DistanceTransform(getWidth(), getHeight());
+			float[] distances = transform.distances(BinaryMorphology.select(getProcessor()));
+			this.setProcessor(new FloatProcessor(getWidth(), getHeight(), distances, null));
+			return this;
+		} catch (Exception ex) {
+			ij.appendError("EIJ::distanceMap", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	public RunLengthMask createRunLengthMask() {
+		return createRunLengthMask(null);
+	}
+
+	/**
+	 * Thresholds this image like createMask but keeps only the runs of the
+	 * selected pixels of every row, the image is not duplicated for an 8 bits
+	 * image
+	 * 
+	 * @param options
+	 *            {method, darkBackground} like createMask
+	 * @return the mask, it can be given to getRois, paintMask,
+	 *         transparentMask and saveTransparentPng
+	 */
+	public RunLengthMask createRunLengthMask(Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			ImageProcessor ip = this.getProcessor();
+			if (!(ip instanceof ByteProcessor)) {
+				return RunLengthMask.fromProcessor(createMask(parameters).getProcessor());
+			}
+			String method=parameters.has("method")?parameters.getString("method"):"Default";
+			boolean darkBackground= !parameters.has("darkBackground") || parameters.getBoolean("darkBackground");
+			// the threshold of this image is only borrowed
+			double minThreshold = ip.getMinThreshold();
+			double maxThreshold = ip.getMaxThreshold();
+			try {
+				ip.setAutoThreshold(AutoThresholder.Method.valueOf(method), darkBackground, ImageProcessor.NO_LUT_UPDATE);
+				return RunLengthMask.fromProcessor(ip);
+			} finally {
+				if (minThreshold == ImageProcessor.NO_THRESHOLD) {
+					ip.resetThreshold();
+				} else {
+					ip.setThreshold(minThreshold, maxThreshold, ImageProcessor.NO_LUT_UPDATE);
+				}
+			}
+		} catch (Exception ex) {
+			ij.appendError("EIJ::createRunLengthMask", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
 	public EIJ paintMask(EIJ mask) {
 		return paintMask(mask, null);
 	}
@@ -378,65 +574,44 @@ public class EIJ extends ImagePlus implements Cloneable {
 	}
 	
 	
-	public String analyze(Roi[] rois, Object object) {
-		try {
-			return analyze(rois);
-		} catch (JSONException e) {
-			e.printStackTrace();
-			return null;
-		}
+	public String analyze(Roi[] rois, Object options) {
+		JSONObject parameters = ij.checkParameter(options);
+		return analyze(rois, parameters);
 	}
 	
 	public String analyze(Roi[] rois) throws JSONException {
-//		EIJ[] hsb=this.splitHSB();
-//		EIJ[] rgb=this.splitRGB();
-		JSONArray results=new JSONArray();
-		ImageStatistics is;
-	    for (Roi currentRoi : rois) {
-	    	JSONObject stat=new JSONObject();
-	    	results.put(stat);
-    		ip.setRoi(currentRoi);
-    		is=ip.getStatistics();
-    		stat.put("x", is.roiX);
-    		stat.put("y", is.roiY);
-    		stat.put("height", is.roiHeight);
-    		stat.put("width", is.roiWidth);
-    		stat.put("surface", is.pixelCount);
-    		stat.put("xCenterOfMass", is.xCenterOfMass);
-    		stat.put("yCenterOfMass", is.yCenterOfMass);
-    		stat.put("xCentroid", is.xCentroid);
-    		stat.put("yCentroid", is.yCentroid);
-    		stat.put("histogram", is.histogram);
-    		stat.put("contour", currentRoi.getLength());
-    		stat.put("roundRectArcSize",currentRoi.getRoundRectArcSize());
- /*   		
-    		rgb[0].ip.setRoi(currentRoi); // we need to change ip otherwise we get histogram for the whole picture !!!
-    		stat.put("red", rgb[0].ip.getHistogram());
-    		rgb[1].ip.setRoi(currentRoi);
-    		stat.put("green", rgb[1].ip.getHistogram());
-    		rgb[2].ip.setRoi(currentRoi);
-    		stat.put("blue", rgb[2].ip.getHistogram());
-    		
-    		hsb[0].ip.setRoi(currentRoi);
-    		stat.put("hue", hsb[0].ip.getHistogram());
-    		hsb[1].ip.setRoi(currentRoi);
-    		stat.put("saturation", hsb[1].ip.getHistogram());
-    		hsb[2].ip.setRoi(currentRoi);
-    		stat.put("brightness", hsb[2].ip.getHistogram());
- */
-	    }
-		return results.toString();
+		return analyze(rois, (Object)null);
+	}
+	
+	/**
+	 * Measures the rois on this image, the rois are measured in parallel
+	 * 
+	 * @param rois
+	 * @param parameters
+	 *            measurements: the measurements to return, separated by
+	 *            commas (bounds, surface, centerOfMass, centroid, histogram,
+	 *            contour, roundRectArcSize, mean, channels), all of them but
+	 *            the mean and the channels by default, channels gives the
+	 *            histograms and the means of the red, green, blue, hue,
+	 *            saturation and brightness of an RGB image, histogram:
+	 *            "full", "compact" or "none", threads
+	 * @return a JSON array with the measurements of every roi
+	 */
+	private String analyze(Roi[] rois, JSONObject parameters) {
+		try {
+			RoiAnalyzer analyzer=new RoiAnalyzer(this.getProcessor());
+			analyzer.setParameters(parameters);
+			return analyzer.analyze(rois).toString();
+		} catch (Exception ex) {
+			ij.appendError("EIJ::analyze", "Error: " + ex.toString());
+		}
+		return null;
 	}
 	
 	public String analyze(EIJ mask, Object options) {
 		JSONObject parameters = ij.checkParameter(options);
 		Roi[] rois=this.getRois(mask, parameters);
-		try {
-			return analyze(rois);
-		} catch (JSONException e) {
-			e.printStackTrace();
-			return null;
-		}
+		return analyze(rois, parameters);
 	}
 	
 	public EIJ paintRois(Roi[] rois) {
@@ -483,6 +658,29 @@ public class EIJ extends ImagePlus implements Cloneable {
 		return transparentImage;
 	}
 	
+	/**
+	 * Paints the pixels of the mask in white
+	 */
+	public EIJ transparentMask(RunLengthMask mask) {
+		EIJ transparentImage=this.duplicate();
+		ImageProcessor transparentIP=transparentImage.getProcessor();
+		transparentIP.setColor(new Color(255,255,255,1));
+		for (int y=0; y<mask.getHeight(); y++) {
+			for (int run=mask.getFirstRun(y); run<mask.getEndRun(y); run++) {
+				transparentIP.drawLine(mask.getRunStart(run), y, mask.getRunEnd(run)-1, y);
+			}
+		}
+		return transparentImage;
+	}
+	
+	public EIJ paintMask(RunLengthMask mask) {
+		return paintMask(mask, null);
+	}
+	
+	public EIJ paintMask(RunLengthMask mask, Object options) {
+		return paintMask(new EIJ(this, mask.toProcessor()), options);
+	}
+	
 	public EIJ paintMask(EIJ mask, Object options) {
 		JSONObject parameters = ij.checkParameter(options);
 		Color strokeColor=parameters.has("strokeColor")?Color.getColor(parameters.optString("strokeColor")):Color.RED;
@@ -595,81 +793,212 @@ public class EIJ extends ImagePlus implements Cloneable {
 	 * 
 	 */
 	public EIJ texture() {
+		return texture(null);
+	}
+
+	/**
+	 * Applies a texture filter to the image
+	 * 
+	 * @param options
+	 *            {method:"lbp", "ifh" or "tamura", lbp by default,
+	 *            lowMemory:false}
+	 */
+	public EIJ texture(Object options) {
 		try {
-			int texture = 2;
-			switch (texture) {
-			case 0:
-				TamutaTextureFilter.tamura(this);
-				break;
-			case 1:
-				this.grey();
-				InvariantFeatureHistogramFilter.invariantFeatureHistogram(this
-						.getProcessor());
-				break;
-			case 2:
-				this.grey();
-				LocalBinaryPartitionFilter.localBinaryPartition(getProcessor());
-				break;
-			}
+			JSONObject parameters = ij.checkParameter(options);
+			applyTexture(parameters.optString("method", "lbp"),
+					parameters.optBoolean("lowMemory", false));
 		} catch (Exception ex) {
 			ij.appendError("EIJ::texture", "Error: " + ex.toString());
 		}
 		return this;
 	}
+
+	/**
+	 * Replaces the image by the result of the texture filter, errors are
+	 * thrown to the caller
+	 * 
+	 * @param method
+	 *            "lbp", "ifh" or "tamura"
+	 * @param lowMemory
+	 *            ifh computes its values twice instead of keeping them for
+	 *            every pixel, tamura always does
+	 */
+	void applyTexture(String method, boolean lowMemory) {
+		if (method.equalsIgnoreCase("tamura")) {
+			TamutaTextureFilter.tamura(this);
+		} else if (method.equalsIgnoreCase("ifh")) {
+			this.grey();
+			InvariantFeatureHistogramFilter.invariantFeatureHistogram(
+					this.getProcessor(), lowMemory);
+		} else if (method.equalsIgnoreCase("lbp")) {
+			this.grey();
+			LocalBinaryPartitionFilter.localBinaryPartition(getProcessor());
+		} else {
+			throw new IllegalArgumentException("Unknown method: " + method);
+		}
+	}
 	
+	public double[] textureFeatures() {
+		return textureFeatures((Object) null);
+	}
+
+	/**
+	 * Computes a texture descriptor of the whole image without modifying it.
+	 * The options are: method ("lbp", "tamura" or "ifh"), for lbp variant
+	 * ("basic", "uniform" or "rotation"), radius and points, for ifh and tamura
+	 * the number of bins, and normalize (divides the histograms by their
+	 * total, true by default).
+	 * 
+	 * @param options
+	 * @return the histogram of the codes for lbp and ifh, coarseness, contrast
+	 *         and directionality for tamura
+	 */
+	public double[] textureFeatures(Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			ImageProcessor gray = getProcessor().convertToByte(true);
+			return textureFeatures(gray, new TextureRegion(gray.getWidth(),
+					gray.getHeight()), parameters);
+		} catch (Exception ex) {
+			ij.appendError("EIJ::textureFeatures", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	public double[][] textureFeatures(Roi[] rois) {
+		return textureFeatures(rois, null);
+	}
+
 	/**
-	 * Returns a 64 bits hash of the image
+	 * Computes a texture descriptor for every roi, the gray image is only
+	 * computed once
+	 * 
+	 * @param rois
+	 * @param options
+	 *            see textureFeatures(Object)
+	 * @return one descriptor per roi
+	 */
+	public double[][] textureFeatures(Roi[] rois, Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			ImageProcessor gray = getProcessor().convertToByte(true);
+			double[][] features = new double[rois.length][];
+			for (int i = 0; i < rois.length; i++) {
+				features[i] = textureFeatures(gray, new TextureRegion(rois[i]),
+						parameters);
+			}
+			return features;
+		} catch (Exception ex) {
+			ij.appendError("EIJ::textureFeatures", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	private double[] textureFeatures(ImageProcessor gray,
+			TextureRegion region, JSONObject parameters) {
+		String method = parameters.optString("method", "lbp");
+		int[] histogram;
+		if (method.equalsIgnoreCase("tamura")) {
+			return TamutaTextureFilter.features(gray, region,
+					parameters.optInt("bins", 16));
+		} else if (method.equalsIgnoreCase("ifh")) {
+			histogram = new InvariantFeatureHistogramFilter(gray).histogram(
+					parameters.optInt("bins", 32), region);
+		} else if (method.equalsIgnoreCase("lbp")) {
+			LocalBinaryPartitionFilter filter = new LocalBinaryPartitionFilter(
+					gray);
+			String variant = parameters.optString("variant", "basic");
+			if (variant.equalsIgnoreCase("uniform"))
+				filter.setVariant(LocalBinaryPartitionFilter.UNIFORM);
+			else if (variant.equalsIgnoreCase("rotation"))
+				filter.setVariant(LocalBinaryPartitionFilter.ROTATION_INVARIANT);
+			else if (!variant.equalsIgnoreCase("basic"))
+				throw new IllegalArgumentException("Unknown variant: "
+						+ variant);
+			filter.setRadius(parameters.optDouble("radius", 1));
+			filter.setPoints(parameters.optInt("points", 8));
+			histogram = filter.histogram(region);
+		} else {
+			throw new IllegalArgumentException("Unknown method: " + method);
+		}
+		boolean normalize = parameters.optBoolean("normalize", true);
+		long total = 0;
+		for (int count : histogram) {
+			total += count;
+		}
+		double[] features = new double[histogram.length];
+		for (int i = 0; i < histogram.length; i++) {
+			if (!normalize)
+				features[i] = histogram[i];
+			else if (total > 0)
+				features[i] = (double) histogram[i] / total;
+		}
+		return features;
+	}
+
+	/**
+	 * Returns a 64 bits hash of the image: the 8x8 box averages of the grey
+	 * levels compared to their mean, read directly from the pixels
 	 * http://www.hackerfactor.com/blog/index.php?/archives/432-Looks-Like-It.html
 	 */
 	public long getHash(){
-		
-		// Step 1 : convert to greyscale and resize to 64 pixels
-		EIJ tmpImg = this.duplicate();
-		tmpImg.grey();
-		tmpImg.resize("8x8", null);
-		
-		//Step 2 : Compute mean value of pixels
-		ImageStatistics stat = tmpImg.getStatistics();
-		double mean = stat.mean;
-		
-		//Step 3 : Create the 64 bits array
-		byte[] pixels = (byte[])tmpImg.getProcessor().getPixels();		
-		boolean[] bits = new boolean[pixels.length];
-		for(int i=0; i<pixels.length; i++){
-			bits[i]=((pixels[i]>=0 && pixels[i]<mean) || (pixels[i]<0 && (255-pixels[i])<mean));
-		}
-		
-		//Step 4 : Construct the hash
-		long n = 0, l = bits.length;
-		for (int i = 0; i < l; ++i) {
-		    n = (n << 1) + (bits[i] ? 1 : 0);
+		return ImageHash.averageHash(this.getProcessor());
+	}
+
+	/**
+	 * Returns a perceptual hash of the image
+	 * 
+	 * @param options
+	 *            {method:("average", "difference", "dct" or "wavelet"),
+	 *            bits:(64 or 256)}
+	 * @return the bits of the hash in 1 or 4 longs
+	 */
+	public long[] getHash(Object options){
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			String method = parameters.optString("method", ImageHash.AVERAGE);
+			int bits = parameters.optInt("bits", 64);
+			return ImageHash.hash(this.getProcessor(), method, bits);
+		} catch (Exception ex) {
+			ij.appendError("EIJ::getHash", "Error: " + ex.toString());
 		}
-		return n;
+		return null;
 	}
 	
 	/**
-	 * Returns the number of colors
+	 * Returns the number of colors, with 5 bits per channel
 	 * 
 	 * @return Number of colors
 	 */
 	public int getColor() {
+		return getColor(null);
+	}
+
+	/**
+	 * Returns the number of distinct colors. The estimate takes a constant
+	 * memory of 2^precision bytes, and HyperLogLog sketches of several images
+	 * can be merged.
+	 * 
+	 * @param options
+	 *            {bits:(15 or 24), estimate:(false, true for a HyperLogLog
+	 *            estimate of the 24 bits colors), precision:14}
+	 * @return Number of colors
+	 */
+	public int getColor(Object options) {
 		try {
-			final int HSIZE = this.getWidth() * this.getHeight();
+			JSONObject parameters = ij.checkParameter(options);
 			if (this.getType() != ImagePlus.COLOR_RGB)
 				throw new IllegalArgumentException("Image must be RGB");
-			int color16;
-			int[] pixels = (int[]) ip.getPixels();
-
-			int[] hist = new int[HSIZE];
-			for (int i = 0; i < width * height; i++) {
-				color16 = rgb(pixels[i]);
-				hist[color16]++;
+			int[] pixels = (int[]) this.getProcessor().getPixels();
+			if (parameters.optBoolean("estimate", false)) {
+				HyperLogLog sketch = new HyperLogLog(parameters.optInt("precision", 14));
+				sketch.add(pixels);
+				return (int) Math.round(sketch.estimate());
 			}
-			int count = 0;
-			for (int i = 0; i < HSIZE; i++)
-				if (hist[i] > 0)
-					count++;
-			return count;
+			ColorCounter counter = new ColorCounter(parameters.optInt("bits", 15));
+			counter.add(pixels);
+			return counter.getCount();
 		} catch (Exception ex) {
 			ij.appendError("EIJ::getColor", "Error: " + ex.toString());
 		}
@@ -757,6 +1086,15 @@ public class EIJ extends ImagePlus implements Cloneable {
 		return getRois(this);
 	}
 	
+	/**
+	 * Returns the rois of this image used as a mask: the objects of the
+	 * pixels between its thresholds, or of the pixels that are not 0 when it
+	 * has no threshold. An image without threshold gave no roi before.
+	 * 
+	 * @param options
+	 *            minLength, maxLength, minWidth... like analyze
+	 * @return the rois
+	 */
 	public Roi[] getRois(Object options) {
 		return getRois(this, options);
 	}
@@ -775,6 +1113,24 @@ public class EIJ extends ImagePlus implements Cloneable {
 	}
 	
 	private Roi[] getRois(ImagePlus mask, JSONObject parameters) {
+		ImageProcessor maskIP=mask.getProcessor();
+		return getRois(BinaryMorphology.select(maskIP), maskIP.getWidth(), maskIP.getHeight(), parameters);
+	}
+	
+	public Roi[] getRois(RunLengthMask mask) {
+		return getRois(mask, null);
+	}
+	
+	public Roi[] getRois(RunLengthMask mask, Object options) {
+		JSONObject parameters = ij.checkParameter(options);
+		return getRois(mask.toBytes(), mask.getWidth(), mask.getHeight(), parameters);
+	}
+	
+	/**
+	 * @param selected
+	 *            width*height pixels, the ones that are not 0 are the mask
+	 */
+	private Roi[] getRois(byte[] selected, int maskWidth, int maskHeight, JSONObject parameters) {
 		int  minLength = parameters.optInt("minLength",0);
 		int  maxLength = parameters.optInt("maxLength",Integer.MAX_VALUE);
 		
@@ -800,63 +1156,58 @@ public class EIJ extends ImagePlus implements Cloneable {
 				sorting=4;
 			}
 		}
-		ThresholdToSelection tts = new ThresholdToSelection();
 		ImageProcessor ip=this.getProcessor();
-		Vector<Roi> selectedRois=new Vector<Roi>();
-	    Roi roi = tts.convert(mask.getProcessor());
-	    
-	    Roi[] rois;
-	    if (roi instanceof ShapeRoi) {
-	    	rois=((ShapeRoi)roi).getRois();
-	    } else {
-	    	rois=new Roi[1];
-	    	rois[0]=roi;
-	    }
-
-	    
-	    if (scale!=1) {
-		    for (int i=0; i<rois.length; i++) {
-		    	rois[i]=scaleROI(rois[i], scale);
-		    }
-	    }
+		Vector<MeasuredRoi> selectedRois=new Vector<MeasuredRoi>();
+		// the particles are labelled and traced on the raster of the mask,
+		// their measurements come with them
+		ParticleFinder finder=new ParticleFinder();
+		if (parameters.optInt("connectivity",8)==4) {
+			finder.setConnectivity(ConnectedComponents.FOUR);
+		}
+		Particle[] particles=finder.find(selected, maskWidth, maskHeight);
 
-	    
-	    ImageStatistics is;
-	    for (Roi currentRoi : rois) {
-	    	// boolean isArea=currentRoi.isArea();
-	    	double length=currentRoi.getLength();
-	    	double width=currentRoi.getBounds().getWidth();
-	    	double height=currentRoi.getBounds().getHeight();
-	    	
-	    	double surface=0;
-	    	if (minSurface>0 || maxSurface<Integer.MAX_VALUE) {
-	    		ip.setRoi(currentRoi);
-	    		is=ip.getStatistics();
-	    		surface=is.pixelCount;
+		// every roi is measured once, the filters and the sorting only
+		// compare the cached values
+	    for (Particle particle : particles) {
+	    	MeasuredRoi current;
+	    	if (scale!=1) {
+	    		current=new MeasuredRoi(scaleROI(particle.getRoi(), scale), ip.getWidth(), ip.getHeight());
+	    	} else {
+	    		current=new MeasuredRoi(particle);
 	    	}
-    		
+	    	double length=current.getLength();
+	    	int width=current.getWidth();
+	    	int height=current.getHeight();
 	    	if ((length>=minLength && length<=maxLength) &&
 	    			(width>=minWidth && width<=maxWidth) &&
-	    			(height>=minHeight) && (height<=maxHeight) &&
-	    			(surface>=minSurface) && (surface<=maxSurface)) {
-	    		selectedRois.add(currentRoi);
+	    			(height>=minHeight) && (height<=maxHeight)) {
+	    		// the surface of a scaled roi is rasterized only when it is needed
+	    		if (minSurface>0 || maxSurface<Integer.MAX_VALUE) {
+	    			int surface=current.getArea();
+	    			if (surface<minSurface || surface>maxSurface) continue;
+	    		}
+	    		selectedRois.add(current);
 	    	}
 	    }
 		
-		rois=selectedRois.toArray(new Roi[selectedRois.size()]);
+		MeasuredRoi[] measured=selectedRois.toArray(new MeasuredRoi[selectedRois.size()]);
 
 	    if (sorting==0) {
-	    	RoiSorterByX.sort(rois);
+	    	RoiSorterByX.sort(measured);
 	    } else if (sorting==1) {
-	    	RoiSorterByY.sort(rois);
+	    	RoiSorterByY.sort(measured);
 	    } else if (sorting==2) {
-	    	RoiSorterByXY.sort(rois);
+	    	RoiSorterByXY.sort(measured);
 	    } else if (sorting==3) {
-	    	RoiSorterByLength.sort(rois);
+	    	RoiSorterByLength.sort(measured);
 	    } else if (sorting==4) {
-	    	RoiSorterBySurface.sort(rois);
+	    	RoiSorterBySurface.sort(measured);
 	    }
 	    
+	    Roi[] rois=new Roi[measured.length];
+	    for (int i=0; i<measured.length; i++) {
+	    	rois[i]=measured[i].getRoi();
+	    }
 	    return rois;
 	}
     
@@ -894,6 +1245,69 @@ public class EIJ extends ImagePlus implements Cloneable {
 	    return split(rois);
 	}
 	
+	/**
+	 * Crops the rois one at a time, when they are asked for
+	 * 
+	 * @param rois
+	 * @param options
+	 *            {reuse: copy the crops of the same size in the same buffer,
+	 *            a crop is then only valid until the next one}
+	 * @return an iterator over the crops, in the order of the rois
+	 */
+	public RoiSplitter splitIterator(Roi[] rois, Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			RoiSplitter splitter=new RoiSplitter(this, rois);
+			splitter.setReuse(parameters.optBoolean("reuse", false));
+			return splitter;
+		} catch (Exception ex) {
+			ij.appendError("EIJ::splitIterator", "Error: " + ex.toString());
+		}
+		return null;
+	}
+	
+	public RoiSplitter splitIterator(Roi[] rois) {
+		return splitIterator(rois, null);
+	}
+	
+	public RoiSplitter splitIterator(ImagePlus mask, Object options) {
+		JSONObject parameters = ij.checkParameter(options);
+		Roi[] rois=this.getRois(mask, parameters);
+		return splitIterator(rois, parameters);
+	}
+	
+	/**
+	 * Saves the crop of every roi without keeping them in memory, the crops
+	 * are saved in parallel
+	 * 
+	 * @param rois
+	 * @param prefix
+	 *            the crop of the roi i is saved in prefix + i + "." + format
+	 * @param options
+	 *            {format: "png" by default, quality, threads}
+	 * @return a JSON array with for every roi the name of the saved file or
+	 *         the error
+	 */
+	public String saveSplit(Roi[] rois, String prefix, Object options) {
+		try {
+			JSONObject parameters = ij.checkParameter(options);
+			return RoiSplitter.save(this, rois, prefix, parameters).toString();
+		} catch (Exception ex) {
+			ij.appendError("EIJ::saveSplit", "Error: " + ex.toString());
+		}
+		return null;
+	}
+	
+	public String saveSplit(Roi[] rois, String prefix) {
+		return saveSplit(rois, prefix, null);
+	}
+	
+	public String saveSplit(ImagePlus mask, String prefix, Object options) {
+		JSONObject parameters = ij.checkParameter(options);
+		Roi[] rois=this.getRois(mask, parameters);
+		return saveSplit(rois, prefix, parameters);
+	}
+	
 	
 	/*
 	 * Splits a image
@@ -912,20 +1326,6 @@ public class EIJ extends ImagePlus implements Cloneable {
 	}
 	*/
 
-	/**
-	 * Converts from 24-bit to 15-bit color
-	 * 
-	 * @param c
-	 *            value of the pixel
-	 * @return the rgb value
-	 */
-	private final int rgb(int c) {
-		int r = (c & 0xf80000) >> 19;
-		int g = (c & 0xf800) >> 6;
-		int b = (c & 0xf8) << 7;
-		return b | g | r;
-	}
-
 	/**
 	 * Replaces the image
 	 * 
@@ -986,55 +1386,74 @@ public class EIJ extends ImagePlus implements Cloneable {
 
 	public boolean saveTransparentPng(String name, EIJ transparency) {
 		try {
-			String fullName = SecureFileManager.getValidatedFilename(basedir, key, name);
-			if (fullName == null) {
-				ij.appendError("EIJ::save", "The file path is null");
-				return false;
-			}
-			SecureFileManager.mkdir(basedir, key, name.replaceAll("[^/]*$", ""));
-
-			
-			final ColorProcessor src = (ColorProcessor)this.getProcessor();
-			int threshold=transparency.getProcessor().getAutoThreshold();
-			//double minThreshold=transparency.getProcessor().getMinThreshold();
 			final ByteProcessor alpha=(ByteProcessor)transparency.getProcessor();
+			if (alpha == null || getWidth() != alpha.getWidth() || getHeight() != alpha.getHeight()) {
+				throw new IllegalArgumentException("Input parameters are not valid: alpha=" + alpha);
+			}
+			int threshold=alpha.getAutoThreshold();
+			final byte[] a = (byte[]) alpha.getPixels();
+			final byte[] opaque = new byte[a.length];
+			for (int i = 0; i < a.length; ++i) {
+				if ((a[i] & 0xff) >= threshold) opaque[i] = 1;
+			}
+			return saveTransparentPng(name, opaque);
+		} catch (Exception ex) {
+			ij.appendError("EIJ::save", "Error : " + ex.toString());
+		}
+		return false;
+	}
 
-			if (src == null || alpha== null || src.getWidth() != alpha.getWidth() || src.getHeight() != alpha.getHeight()) { 
-				throw new IllegalArgumentException("Input parameters are not valid: src=" + src + ", alpha=" + alpha); 
-			} 
-
-			final ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_sRGB); 
-			final int[] bits = {8, 8, 8, 8}; 
-			final ColorModel cm = new ComponentColorModel(cs, bits, true, false, Transparency.BITMASK, DataBuffer.TYPE_BYTE); 
-			final WritableRaster raster = cm.createCompatibleWritableRaster(src.getWidth(), src.getHeight()); 
-			final DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer(); 
-
-			final byte[] data = dataBuffer.getData(); 
-			final int n = ((int[]) src.getPixels()).length; 
-			final byte[] r = new byte[n]; 
-			final byte[] g = new byte[n]; 
-			final byte[] b = new byte[n]; 
-			final byte[] a = (byte[]) alpha.getPixels(); 
-			src.getRGB(r, g, b); 
-			for (int i = 0; i < n; ++i) { 
-				final int offset = i * 4; 
-				data[offset] = r[i]; 
-				data[offset + 1] = g[i]; 
-				data[offset + 2] = b[i];
-				// bytes are between -128 and 127 !!!! Dificult to compare ...
-				if ((a[i]>=0 && a[i]<threshold) || (a[i]<0 && (255-a[i])<threshold)) {
-					data[offset + 3] = 0;
-				} else {
-					data[offset + 3] = -1;
-				}
-			} 
-			final BufferedImage bi = new BufferedImage(cm, raster, false, null); 
-			ImageIO.write(bi, "PNG", new File(fullName)); 
+	/**
+	 * Saves this RGB image in a PNG where the pixels outside of the mask are
+	 * transparent
+	 */
+	public boolean saveTransparentPng(String name, RunLengthMask transparency) {
+		try {
+			if (getWidth() != transparency.getWidth() || getHeight() != transparency.getHeight()) {
+				throw new IllegalArgumentException("The mask must have the size of the image");
+			}
+			return saveTransparentPng(name, transparency.toBytes());
 		} catch (Exception ex) {
 			ij.appendError("EIJ::save", "Error : " + ex.toString());
 		}
 		return false;
 	}
+
+	/**
+	 * @param opaque
+	 *            1 for the pixels that are kept, 0 for the transparent ones
+	 */
+	private boolean saveTransparentPng(String name, byte[] opaque) throws IOException {
+		String fullName = SecureFileManager.getValidatedFilename(basedir, key, name);
+		if (fullName == null) {
+			ij.appendError("EIJ::save", "The file path is null");
+			return false;
+		}
+		SecureFileManager.mkdir(basedir, key, name.replaceAll("[^/]*$", ""));
+
+		final ColorProcessor src = (ColorProcessor)this.getProcessor();
+		final ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_sRGB); 
+		final int[] bits = {8, 8, 8, 8}; 
+		final ColorModel cm = new ComponentColorModel(cs, bits, true, false, Transparency.BITMASK, DataBuffer.TYPE_BYTE); 
+		final WritableRaster raster = cm.createCompatibleWritableRaster(src.getWidth(), src.getHeight()); 
+		final DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer(); 
+
+		final byte[] data = dataBuffer.getData(); 
+		final int n = ((int[]) src.getPixels()).length; 
+		final byte[] r = new byte[n]; 
+		final byte[] g = new byte[n]; 
+		final byte[] b = new byte[n]; 
+		src.getRGB(r, g, b); 
+		for (int i = 0; i < n; ++i) { 
+			final int offset = i * 4; 
+			data[offset] = r[i]; 
+			data[offset + 1] = g[i]; 
+			data[offset + 2] = b[i];
+			data[offset + 3] = opaque[i] == 0 ? 0 : (byte) -1;
+		} 
+		final BufferedImage bi = new BufferedImage(cm, raster, false, null); 
+		return ImageIO.write(bi, "PNG", new File(fullName)); 
+	}
 	
 	public EIJ reduceColor(int factor){
 		if(factor < 1 || factor > 7) {
@@ -1083,49 +1502,54 @@ public class EIJ extends ImagePlus implements Cloneable {
 	}
 }
 
-class RoiSorterByX implements Comparator<Roi> {
-	public static void sort(Roi[] rois) {
+// the sorters compare the measurements cached in MeasuredRoi, Arrays.sort
+// keeps the rois with equal values in the order of the particles
+
+class RoiSorterByX implements Comparator<MeasuredRoi> {
+	public static void sort(MeasuredRoi[] rois) {
 		Arrays.sort(rois, new RoiSorterByX());
 	}
-	public int compare(Roi roi1, Roi roi2) {
-		return (roi1.getBounds().x-roi2.getBounds().x);
+	public int compare(MeasuredRoi roi1, MeasuredRoi roi2) {
+		return compareInt(roi1.getX(), roi2.getX());
+	}
+	static int compareInt(int value1, int value2) {
+		return value1<value2 ? -1 : (value1==value2 ? 0 : 1);
 	}
 }
 
-class RoiSorterByY implements Comparator<Roi> {
-	public static void sort(Roi[] rois) {
+class RoiSorterByY implements Comparator<MeasuredRoi> {
+	public static void sort(MeasuredRoi[] rois) {
 		Arrays.sort(rois, new RoiSorterByY());
 	}
-	public int compare(Roi roi1, Roi roi2) {
-		return (roi1.getBounds().y-roi2.getBounds().y);
+	public int compare(MeasuredRoi roi1, MeasuredRoi roi2) {
+		return RoiSorterByX.compareInt(roi1.getY(), roi2.getY());
 	}
 }
 
-class RoiSorterByXY implements Comparator<Roi> {
-	public static void sort(Roi[] rois) {
+class RoiSorterByXY implements Comparator<MeasuredRoi> {
+	public static void sort(MeasuredRoi[] rois) {
 		Arrays.sort(rois, new RoiSorterByXY());
 	}
-	public int compare(Roi roi1, Roi roi2) {
-		return ((roi1.getBounds().y+roi1.getBounds().x)-(roi2.getBounds().y+roi2.getBounds().x));
+	public int compare(MeasuredRoi roi1, MeasuredRoi roi2) {
+		return RoiSorterByX.compareInt(roi1.getY()+roi1.getX(), roi2.getY()+roi2.getX());
 	}
 }
 
  
-class RoiSorterByLength implements Comparator<Roi> {
-	public static void sort(Roi[] rois) {
+class RoiSorterByLength implements Comparator<MeasuredRoi> {
+	public static void sort(MeasuredRoi[] rois) {
 		Arrays.sort(rois, new RoiSorterByLength());
 	}
-	public int compare(Roi roi1, Roi roi2) {
-		return (int)(roi2.getLength()-roi1.getLength());
+	public int compare(MeasuredRoi roi1, MeasuredRoi roi2) {
+		return Double.compare(roi2.getLength(), roi1.getLength());
 	}
 }
 
-class RoiSorterBySurface implements Comparator<Roi> {
-	public static void sort(Roi[] rois) {
-		Arrays.sort(rois, new RoiSorterByLength());
+class RoiSorterBySurface implements Comparator<MeasuredRoi> {
+	public static void sort(MeasuredRoi[] rois) {
+		Arrays.sort(rois, new RoiSorterBySurface());
 	}
-	public int compare(Roi roi1, Roi roi2) {
-		return (int)(roi2.getMask().getStatistics().pixelCount-roi1.getMask().getStatistics().pixelCount);
+	public int compare(MeasuredRoi roi1, MeasuredRoi roi2) {
+		return RoiSorterByX.compareInt(roi2.getArea(), roi1.getArea());
 	}
 }
-
@@ -0,0 +1,237 @@
+package org.cheminfo.scripting.image;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.cheminfo.function.scripting.SecureFileManager;
+import org.json.JSONObject;
+
+/**
+ * Computes the perceptual hash of a list of files on a pool of threads. The
+ * hash only needs a few cells, so the images are decoded with a subsampling
+ * that keeps their smallest side above a minimal size: a large JPEG never
+ * becomes a full size raster. The formats that ImageIO can not read are
+ * loaded by ImageJ at their full size.
+ *
+ * Every thread takes the next file of the list when it is done with the
+ * previous one, the slow files do not hold the others back.
+ */
+public class HashBatch {
+	private final IJ ij;
+	private final String basedir;
+	private final String key;
+	private String method = ImageHash.AVERAGE;
+	private int bits = 64;
+	private int minSize = 256;
+	private int threads;
+
+	/**
+	 * The hashes of the files, in the order of the list
+	 */
+	public static class Hashes {
+		private final String[] files;
+		private final int words;
+		private final long[] hashes;
+		private final String[] errors;
+
+		Hashes(String[] files, int words) {
+			this.files = files;
+			this.words = words;
+			this.hashes = new long[files.length * words];
+			this.errors = new String[files.length];
+		}
+
+		public String[] getFiles() {
+			return files;
+		}
+
+		/**
+		 * @return the number of longs of a hash
+		 */
+		public int getWords() {
+			return words;
+		}
+
+		/**
+		 * @return the hashes of all the files, the one of the file i is from
+		 *         i*words to (i+1)*words, 0 if it failed
+		 */
+		public long[] getHashes() {
+			return hashes;
+		}
+
+		/**
+		 * @return the hash of the file i
+		 */
+		public long[] getHash(int i) {
+			long[] hash = new long[words];
+			System.arraycopy(hashes, i * words, hash, 0, words);
+			return hash;
+		}
+
+		/**
+		 * @return for every file the error that stopped it, null if it was
+		 *         hashed
+		 */
+		public String[] getErrors() {
+			return errors;
+		}
+	}
+
+	public HashBatch(IJ ij, String basedir, String key) {
+		this.ij = ij;
+		this.basedir = basedir;
+		this.key = key;
+		this.threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @param parameters
+	 *            method and bits of the hash like EIJ.getHash, minSize (the
+	 *            smallest side of a decoded image, 256 by default) and threads
+	 */
+	public void setParameters(JSONObject parameters) {
+		method = parameters.optString("method", method);
+		bits = parameters.optInt("bits", bits);
+		minSize = Math.max(parameters.optInt("minSize", minSize), 1);
+		threads = Math.max(parameters.optInt("threads", threads), 1);
+	}
+
+	/**
+	 * Hashes all the files and waits for the end of the last one
+	 *
+	 * @param files
+	 * @return the hashes and the errors of the files
+	 */
+	public Hashes process(final String[] files) throws InterruptedException {
+		// fails on a wrong method or number of bits before reading anything
+		ImageHash.hash(new ByteProcessor(1, 1), method, bits);
+		final Hashes result = new Hashes(files, bits / 64);
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService pool = createPool(Math.min(threads,
+				Math.max(files.length, 1)));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads && t < files.length; t++) {
+				futures.add(pool.submit(new Runnable() {
+					public void run() {
+						int i;
+						while ((i = next.getAndIncrement()) < files.length) {
+							try {
+								long[] hash = hash(files[i]);
+								System.arraycopy(hash, 0, result.hashes, i
+										* result.words, result.words);
+							} catch (Throwable ex) {
+								result.errors[i] = ex.toString();
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException ex) {
+					throw new IllegalStateException(ex.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return result;
+	}
+
+	private long[] hash(String file) throws Exception {
+		BufferedImage image = decode(file);
+		ImageProcessor ip;
+		if (image != null) {
+			ip = new EIJ(image, basedir, key, ij).getProcessor();
+		} else {
+			EIJ loaded = ij.load(basedir, key, file);
+			if (loaded == null)
+				throw new IllegalArgumentException("Invalid file name");
+			ip = loaded.getProcessor();
+		}
+		if (ip == null)
+			throw new IllegalStateException("The image could not be decoded");
+		return ImageHash.hash(ip, method, bits);
+	}
+
+	/**
+	 * @return the subsampled image, null if ImageIO has no reader for it
+	 */
+	private BufferedImage decode(String file) throws Exception {
+		if (file.trim().matches("^https?://.*$")) {
+			// closing the image stream does not close the connection
+			InputStream input = new URL(file.trim()).openStream();
+			try {
+				return decode(ImageIO.createImageInputStream(input));
+			} finally {
+				input.close();
+			}
+		}
+		String fullName = SecureFileManager.getValidatedFilename(basedir, key,
+				file);
+		if (fullName == null)
+			throw new IllegalArgumentException("Invalid file name");
+		return decode(ImageIO.createImageInputStream(new File(fullName)));
+	}
+
+	/**
+	 * @param stream
+	 *            closed once read
+	 */
+	private BufferedImage decode(ImageInputStream stream) throws Exception {
+		if (stream == null)
+			throw new IllegalArgumentException("The file could not be read");
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext())
+				return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, true, true);
+				int side = Math.min(reader.getWidth(0), reader.getHeight(0));
+				int step = Math.max(side / minSize, 1);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(step, step, 0, 0);
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static ExecutorService createPool(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "HashBatch-" + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -0,0 +1,273 @@
+package org.cheminfo.scripting.image;
+
+import java.util.Arrays;
+
+import org.cheminfo.scripting.image.filters.BandExecutor;
+import org.json.JSONObject;
+
+/**
+ * Hamming distances between 64 bits hashes, in bulk. The bits are counted by
+ * Long.bitCount, that the JIT turns into a single popcnt instruction, and the
+ * distances are between 0 and 64 so they fit in a byte. The nearest hashes are
+ * selected with a counting sort on the distance instead of a full sort.
+ *
+ * The comparisons of several queries are split between the threads of a
+ * BandExecutor, every thread compares its own queries to all the hashes.
+ */
+public class HashDistances {
+	private static final int BITS = 64;
+
+	private BandExecutor executor = BandExecutor.getShared();
+
+	public void setExecutor(BandExecutor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @param parameters
+	 *            threads, the comparisons use their own threads instead of
+	 *            the shared ones
+	 */
+	public void setParameters(JSONObject parameters) {
+		if (parameters.has("threads"))
+			executor = new BandExecutor(Math.max(
+					parameters.optInt("threads", 1), 1));
+	}
+
+	/**
+	 * Stops the threads created for the threads parameter
+	 */
+	public void shutdown() {
+		if (executor != BandExecutor.getShared())
+			executor.shutdown();
+	}
+
+	/**
+	 * @return the number of bits that differ between the two hashes
+	 */
+	public static int distance(long hash1, long hash2) {
+		return Long.bitCount(hash1 ^ hash2);
+	}
+
+	/**
+	 * @return the number of bits that differ between two hashes of several
+	 *         longs
+	 */
+	public static int distance(long[] hash1, long[] hash2) {
+		if (hash1.length != hash2.length)
+			throw new IllegalArgumentException(
+					"The hashes must have the same length");
+		int distance = 0;
+		for (int i = 0; i < hash1.length; i++) {
+			distance += Long.bitCount(hash1[i] ^ hash2[i]);
+		}
+		return distance;
+	}
+
+	/**
+	 * @param query
+	 * @param hashes
+	 * @return the distance of the query to every hash
+	 */
+	public static byte[] distances(long query, long[] hashes) {
+		byte[] distances = new byte[hashes.length];
+		for (int i = 0; i < hashes.length; i++) {
+			distances[i] = (byte) Long.bitCount(query ^ hashes[i]);
+		}
+		return distances;
+	}
+
+	/**
+	 * @param queries
+	 * @param hashes
+	 * @return the distances of every pair, the distance between queries[i]
+	 *         and hashes[j] is at i * hashes.length + j
+	 */
+	public byte[] distances(final long[] queries, final long[] hashes) {
+		long size = (long) queries.length * hashes.length;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many pairs: " + size
+					+ ", use pairs or nearest instead");
+		final byte[] distances = new byte[(int) size];
+		executor.execute(queries.length, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				for (int i = start; i < end; i++) {
+					long query = queries[i];
+					int offset = i * hashes.length;
+					for (int j = 0; j < hashes.length; j++) {
+						distances[offset + j] = (byte) Long.bitCount(query
+								^ hashes[j]);
+					}
+				}
+			}
+		});
+		return distances;
+	}
+
+	/**
+	 * @param query
+	 * @param hashes
+	 * @param k
+	 * @return the indexes of the k hashes that are the nearest to the query,
+	 *         from the nearest to the farthest, the hashes at the same
+	 *         distance are in the order of the array
+	 */
+	public static int[] nearest(long query, long[] hashes, int k) {
+		int[] result = new int[Math.max(Math.min(k, hashes.length), 0)];
+		nearest(query, hashes, new byte[hashes.length], new int[BITS + 2],
+				result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * @param queries
+	 * @param hashes
+	 * @param k
+	 * @return the indexes of the k nearest hashes of every query, the ones of
+	 *         queries[i] are from i * k to (i + 1) * k
+	 */
+	public int[] nearest(final long[] queries, final long[] hashes, int k) {
+		final int count = Math.max(Math.min(k, hashes.length), 0);
+		final int[] result = new int[queries.length * count];
+		executor.execute(queries.length, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				byte[] distances = new byte[hashes.length];
+				int[] counts = new int[BITS + 2];
+				for (int i = start; i < end; i++) {
+					nearest(queries[i], hashes, distances, counts, result,
+							i * count, count);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Fills result from offset with the indexes of the k nearest hashes, k is
+	 * at most the number of hashes
+	 */
+	private static void nearest(long query, long[] hashes, byte[] distances,
+			int[] counts, int[] result, int offset, int k) {
+		if (k <= 0)
+			return;
+		// the number of hashes at every distance, shifted by one for the
+		// positions
+		Arrays.fill(counts, 0);
+		for (int j = 0; j < hashes.length; j++) {
+			int distance = Long.bitCount(query ^ hashes[j]);
+			distances[j] = (byte) distance;
+			counts[distance + 1]++;
+		}
+		for (int d = 1; d < counts.length; d++) {
+			counts[d] += counts[d - 1];
+		}
+		for (int j = 0; j < hashes.length; j++) {
+			int position = counts[distances[j]];
+			if (position < k) {
+				result[offset + position] = j;
+			}
+			counts[distances[j]]++;
+		}
+	}
+
+	/**
+	 * @param queries
+	 * @param hashes
+	 * @param maxDistance
+	 * @return the pairs that are at most at maxDistance as triplets (index of
+	 *         the query, index of the hash, distance), sorted by query and
+	 *         hash
+	 */
+	public int[] pairs(long[] queries, long[] hashes, int maxDistance) {
+		return pairs(queries, hashes, maxDistance, false);
+	}
+
+	/**
+	 * @param hashes
+	 * @param maxDistance
+	 * @return the pairs of different hashes of the array that are at most at
+	 *         maxDistance as triplets (i, j, distance) with i &lt; j
+	 */
+	public int[] pairs(long[] hashes, int maxDistance) {
+		return pairs(hashes, hashes, maxDistance, true);
+	}
+
+	private int[] pairs(final long[] queries, final long[] hashes,
+			final int maxDistance, final boolean upper) {
+		// every band has its own list, they are joined in the order of the
+		// bands
+		final int n = queries.length;
+		final int[][] bands = new int[executor.getBandCount(n)][];
+		final int[] lengths = new int[bands.length];
+		executor.execute(n, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				if (upper && n > 0) {
+					// the first queries have more hashes after them, the bands
+					// get the same number of pairs instead of queries
+					long pairs = pairsBefore(n, n);
+					start = rowOfPair(n, start * pairs / n);
+					end = rowOfPair(n, end * pairs / n);
+				}
+				int[] triplets = new int[3 * 64];
+				int length = 0;
+				for (int i = start; i < end; i++) {
+					long query = queries[i];
+					for (int j = upper ? i + 1 : 0; j < hashes.length; j++) {
+						int distance = Long.bitCount(query ^ hashes[j]);
+						if (distance > maxDistance)
+							continue;
+						if (length + 3 > triplets.length) {
+							int[] larger = new int[triplets.length * 2];
+							System.arraycopy(triplets, 0, larger, 0, length);
+							triplets = larger;
+						}
+						triplets[length++] = i;
+						triplets[length++] = j;
+						triplets[length++] = distance;
+					}
+				}
+				bands[band] = triplets;
+				lengths[band] = length;
+			}
+		});
+		long total = 0;
+		for (int band = 0; band < bands.length; band++) {
+			total += lengths[band];
+		}
+		if (total > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(
+					"Too many pairs, use a smaller maxDistance");
+		int[] result = new int[(int) total];
+		int position = 0;
+		for (int band = 0; band < bands.length; band++) {
+			if (bands[band] == null)
+				continue;
+			System.arraycopy(bands[band], 0, result, position, lengths[band]);
+			position += lengths[band];
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of pairs (i, j), i &lt; j &lt; n, with i &lt; row
+	 */
+	private static long pairsBefore(int n, int row) {
+		return (long) row * n - (long) row * (row + 1) / 2;
+	}
+
+	/**
+	 * @return the first row that starts after the pair at index pair of the
+	 *         upper triangle
+	 */
+	private static int rowOfPair(int n, long pair) {
+		int low = 0, high = n;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (pairsBefore(n, middle) < pair)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,310 @@
+package org.cheminfo.scripting.image;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An index of 64 bits hashes for the Hamming distance queries, by multi-index
+ * hashing: every hash is cut in 4 blocks of 16 bits and every block has a
+ * table from its 65536 values to the hashes that have it. Two hashes at
+ * distance r have at least one block at distance r/4 or less, so a query only
+ * looks at the hashes of the values near its own blocks instead of all of
+ * them. http://www.cs.toronto.edu/~norouzi/research/papers/multi_index_hashing.pdf
+ *
+ * The tables are sorted arrays built by a counting sort, once after the
+ * hashes are added, and the saved index only keeps the hashes. When a query
+ * would look at about as many hashes as a scan, the hashes are scanned.
+ */
+public class HashIndex {
+	private static final int BLOCKS = 4;
+	private static final int BLOCK_BITS = 16;
+	private static final int VALUES = 1 << BLOCK_BITS;
+	private static final int MAGIC = 0x48494458; // HIDX
+	private static final int VERSION = 1;
+
+	private long[] hashes;
+	private int size;
+	private Tables tables;
+
+	/**
+	 * The hashes of every value of every block, they are not modified after
+	 * being built
+	 */
+	private static class Tables {
+		final long[] hashes;
+		final int size;
+		// ids[block][starts[block][value]] to ids[block][starts[block][value
+		// + 1]] are the hashes whose block has the value
+		final int[][] starts = new int[BLOCKS][];
+		final int[][] ids = new int[BLOCKS][];
+
+		Tables(long[] hashes, int size) {
+			this.hashes = hashes;
+			this.size = size;
+			for (int block = 0; block < BLOCKS; block++) {
+				int[] start = new int[VALUES + 1];
+				for (int i = 0; i < size; i++) {
+					start[block(hashes[i], block) + 1]++;
+				}
+				for (int value = 0; value < VALUES; value++) {
+					start[value + 1] += start[value];
+				}
+				int[] next = Arrays.copyOf(start, VALUES);
+				int[] id = new int[size];
+				for (int i = 0; i < size; i++) {
+					id[next[block(hashes[i], block)]++] = i;
+				}
+				starts[block] = start;
+				ids[block] = id;
+			}
+		}
+	}
+
+	public HashIndex() {
+		this(new long[0]);
+	}
+
+	/**
+	 * @param hashes
+	 *            the hashes of the index, their ids are their positions
+	 */
+	public HashIndex(long[] hashes) {
+		this.hashes = hashes.clone();
+		this.size = hashes.length;
+	}
+
+	/**
+	 * @param hash
+	 * @return the id of the hash, the number of hashes added before it
+	 */
+	public synchronized int add(long hash) {
+		if (size == hashes.length)
+			hashes = Arrays.copyOf(hashes, Math.max(16, size * 2));
+		hashes[size] = hash;
+		tables = null;
+		return size++;
+	}
+
+	/**
+	 * @param newHashes
+	 * @return the id of the first hash, the others follow
+	 */
+	public synchronized int addAll(long[] newHashes) {
+		if (size + newHashes.length > hashes.length)
+			hashes = Arrays.copyOf(hashes,
+					Math.max(size + newHashes.length, size * 2));
+		System.arraycopy(newHashes, 0, hashes, size, newHashes.length);
+		tables = null;
+		int first = size;
+		size += newHashes.length;
+		return first;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the hash of the id
+	 */
+	public synchronized long get(int id) {
+		if (id < 0 || id >= size)
+			throw new IndexOutOfBoundsException("No hash " + id);
+		return hashes[id];
+	}
+
+	/**
+	 * @return the tables of the hashes added so far, built again after an add
+	 */
+	private synchronized Tables tables() {
+		if (tables == null)
+			tables = new Tables(hashes, size);
+		return tables;
+	}
+
+	/**
+	 * @param query
+	 * @param radius
+	 * @return the ids of the hashes that are at most at radius from the
+	 *         query, from the nearest to the farthest, the ones at the same
+	 *         distance by id
+	 */
+	public int[] within(long query, int radius) {
+		return ids(search(tables(), query, radius));
+	}
+
+	/**
+	 * @param query
+	 * @param k
+	 * @return the ids of the k nearest hashes, from the nearest to the
+	 *         farthest, the ones at the same distance by id
+	 */
+	public int[] nearest(long query, int k) {
+		Tables tables = tables();
+		k = Math.max(Math.min(k, tables.size), 0);
+		// with blocks at r or less the search is complete up to 4r+3, it is
+		// widened until it holds k hashes
+		for (int blockRadius = 0;; blockRadius++) {
+			int radius = BLOCKS * blockRadius + BLOCKS - 1;
+			if (scans(blockRadius))
+				radius = 64;
+			long[] found = search(tables, query, radius);
+			if (found.length >= k || radius >= 64)
+				return ids(Arrays.copyOf(found, k));
+		}
+	}
+
+	/**
+	 * @return the hashes at most at radius as distance &lt;&lt; 32 | id, sorted
+	 */
+	private static long[] search(Tables tables, long query, int radius) {
+		long[] found = new long[16];
+		int count = 0;
+		int blockRadius = radius / BLOCKS;
+		if (scans(blockRadius)) {
+			for (int i = 0; i < tables.size; i++) {
+				int distance = Long.bitCount(query ^ tables.hashes[i]);
+				if (distance <= radius) {
+					if (count == found.length)
+						found = Arrays.copyOf(found, count * 2);
+					found[count++] = ((long) distance << 32) | i;
+				}
+			}
+		} else {
+			for (int block = 0; block < BLOCKS; block++) {
+				int value = block(query, block);
+				int[] starts = tables.starts[block];
+				int[] ids = tables.ids[block];
+				for (int bits = 0; bits <= blockRadius; bits++) {
+					// every mask of 16 bits with this number of bits set, in
+					// increasing order (Gosper's hack)
+					for (int mask = (1 << bits) - 1; mask < VALUES;) {
+						int candidate = value ^ mask;
+						int end = starts[candidate + 1];
+						for (int j = starts[candidate]; j < end; j++) {
+							int id = ids[j];
+							long hash = tables.hashes[id];
+							// only counted by the first block that is near
+							if (foundBefore(query, hash, block, blockRadius))
+								continue;
+							int distance = Long.bitCount(query ^ hash);
+							if (distance <= radius) {
+								if (count == found.length)
+									found = Arrays.copyOf(found, count * 2);
+								found[count++] = ((long) distance << 32) | id;
+							}
+						}
+						if (mask == 0)
+							break;
+						int lowest = mask & -mask;
+						int ripple = mask + lowest;
+						mask = ripple | (((mask ^ ripple) >>> 2) / lowest);
+					}
+				}
+			}
+		}
+		found = Arrays.copyOf(found, count);
+		Arrays.sort(found);
+		return found;
+	}
+
+	/**
+	 * @return true if a block before this one is at most at blockRadius, the
+	 *         hash was already looked at
+	 */
+	private static boolean foundBefore(long query, long hash, int block,
+			int blockRadius) {
+		for (int before = 0; before < block; before++) {
+			int distance = Integer.bitCount(block(query, before)
+					^ block(hash, before));
+			if (distance <= blockRadius)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the blocks at blockRadius cover so many values that
+	 *         about every hash would be looked at, they are scanned instead
+	 */
+	private static boolean scans(int blockRadius) {
+		return BLOCKS * variants(blockRadius) >= VALUES;
+	}
+
+	/**
+	 * @return the number of values of 16 bits at most at radius from a value
+	 */
+	private static int variants(int radius) {
+		int total = 0;
+		int combinations = 1;
+		for (int bits = 0; bits <= Math.min(radius, BLOCK_BITS); bits++) {
+			total += combinations;
+			combinations = combinations * (BLOCK_BITS - bits) / (bits + 1);
+		}
+		return total;
+	}
+
+	private static int block(long hash, int block) {
+		return (int) (hash >>> (BLOCK_BITS * block)) & (VALUES - 1);
+	}
+
+	private static int[] ids(long[] found) {
+		int[] ids = new int[found.length];
+		for (int i = 0; i < found.length; i++) {
+			ids[i] = (int) found[i];
+		}
+		return ids;
+	}
+
+	/**
+	 * Writes the hashes, the tables are built again when the index is loaded
+	 *
+	 * @param stream
+	 *            is not closed
+	 */
+	public void save(OutputStream stream) throws IOException {
+		long[] saved;
+		int count;
+		synchronized (this) {
+			saved = hashes;
+			count = size;
+		}
+		DataOutputStream output = new DataOutputStream(stream);
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+		output.writeInt(count);
+		for (int i = 0; i < count; i++) {
+			output.writeLong(saved[i]);
+		}
+		output.flush();
+	}
+
+	/**
+	 * @param stream
+	 *            written by save, is not closed
+	 * @return the index of the saved hashes, with the same ids
+	 */
+	public static HashIndex load(InputStream stream) throws IOException {
+		DataInputStream input = new DataInputStream(stream);
+		if (input.readInt() != MAGIC)
+			throw new IOException("Not a hash index");
+		int version = input.readInt();
+		if (version != VERSION)
+			throw new IOException("Unknown hash index version: " + version);
+		int count = input.readInt();
+		if (count < 0)
+			throw new IOException("Invalid number of hashes: " + count);
+		long[] hashes = new long[count];
+		for (int i = 0; i < count; i++) {
+			hashes[i] = input.readLong();
+		}
+		HashIndex index = new HashIndex();
+		index.hashes = hashes;
+		index.size = count;
+		return index;
+	}
+}
@@ -1,7 +1,13 @@
 package org.cheminfo.scripting.image;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.imageio.ImageIO;
 
@@ -47,19 +53,258 @@ public class IJ extends Function {
 		return new EIJ(image, basedir, basedirkey, this);
 	}
 	
+	/**
+	 * Applies a texture filter to every file and saves the result next to it.
+	 * Decoding, filtering and encoding of different files overlap and at most
+	 * maxInFlight images are in memory at the same time.
+	 * 
+	 * @param basedir
+	 * @param basedirkey
+	 * @param files
+	 * @param options
+	 *            {method:"lbp", "ifh" or "tamura", lowMemory:false,
+	 *            suffix:"-texture",
+	 *            format:"png", quality:100, decodeThreads, filterThreads,
+	 *            encodeThreads, maxInFlight}
+	 * @return a JSON array with for every file the saved image or the error
+	 */
+	public String textureBatch(String basedir, String basedirkey,
+			String[] files, Object options) {
+		try {
+			TextureBatch batch = new TextureBatch(this, basedir, basedirkey);
+			batch.setParameters(checkParameter(options));
+			return batch.process(files).toString();
+		} catch (Exception ex) {
+			appendError("IJ::textureBatch", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Computes the hash of every file on a pool of threads. The images are
+	 * decoded with a subsampling, at a size that is enough for the hash.
+	 * 
+	 * @param basedir
+	 * @param basedirkey
+	 * @param files
+	 * @param options
+	 *            {method:"average", bits:64, minSize:256, threads}
+	 * @return the hashes of the files in the order of the list, with
+	 *         getHashes() and getErrors()
+	 */
+	public HashBatch.Hashes hashBatch(String basedir, String basedirkey,
+			String[] files, Object options) {
+		try {
+			HashBatch batch = new HashBatch(this, basedir, basedirkey);
+			batch.setParameters(checkParameter(options));
+			return batch.process(files);
+		} catch (Exception ex) {
+			appendError("IJ::hashBatch", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
 	/**
 	 * Returns the Hamming distance between the two hashes
 	 */
 	public byte hashDistance(long hash1, long hash2){
-		long xor = hash1^hash2;
-		byte result=0;
-		for (int i=0; i<64; i++) {
-			if ((xor & 1) == 1) result++;
-			xor=xor>>1;
+		return (byte)HashDistances.distance(hash1, hash2);
+	}
+
+	/**
+	 * Returns the Hamming distance between two hashes of several longs, like
+	 * the 256 bits hashes
+	 */
+	public int hashDistance(long[] hash1, long[] hash2){
+		try {
+			return HashDistances.distance(hash1, hash2);
+		} catch (Exception ex) {
+			appendError("IJ::hashDistance", "Error: " + ex.toString());
 		}
-		return result;
+		return -1;
 	}
- 
+
+	/**
+	 * Returns the Hamming distance between the hash and every hash of the
+	 * array
+	 */
+	public byte[] hashDistances(long hash, long[] hashes) {
+		try {
+			return HashDistances.distances(hash, hashes);
+		} catch (Exception ex) {
+			appendError("IJ::hashDistances", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the Hamming distances of all the pairs, the distance between
+	 * hashes1[i] and hashes2[j] is at i*hashes2.length+j
+	 * 
+	 * @param options
+	 *            {threads}
+	 */
+	public byte[] hashDistances(long[] hashes1, long[] hashes2, Object options) {
+		HashDistances distances = new HashDistances();
+		try {
+			distances.setParameters(checkParameter(options));
+			return distances.distances(hashes1, hashes2);
+		} catch (Exception ex) {
+			appendError("IJ::hashDistances", "Error: " + ex.toString());
+		} finally {
+			distances.shutdown();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the indexes of the k hashes of the array that are the nearest
+	 * to the hash, from the nearest to the farthest
+	 */
+	public int[] nearestHashes(long hash, long[] hashes, int k) {
+		try {
+			return HashDistances.nearest(hash, hashes, k);
+		} catch (Exception ex) {
+			appendError("IJ::nearestHashes", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the indexes of the k nearest hashes of every query, the ones of
+	 * queries[i] are from i*k to (i+1)*k
+	 * 
+	 * @param options
+	 *            {threads}
+	 */
+	public int[] nearestHashes(long[] queries, long[] hashes, int k, Object options) {
+		HashDistances distances = new HashDistances();
+		try {
+			distances.setParameters(checkParameter(options));
+			return distances.nearest(queries, hashes, k);
+		} catch (Exception ex) {
+			appendError("IJ::nearestHashes", "Error: " + ex.toString());
+		} finally {
+			distances.shutdown();
+		}
+		return null;
+	}
+
+	public int[] similarHashes(long[] hashes, int maxDistance) {
+		return similarHashes(hashes, maxDistance, null);
+	}
+
+	/**
+	 * Returns the pairs of hashes of the array that are at most at maxDistance
+	 * as triplets i, j, distance with i&lt;j
+	 * 
+	 * @param options
+	 *            {threads}
+	 */
+	public int[] similarHashes(long[] hashes, int maxDistance, Object options) {
+		HashDistances distances = new HashDistances();
+		try {
+			distances.setParameters(checkParameter(options));
+			return distances.pairs(hashes, maxDistance);
+		} catch (Exception ex) {
+			appendError("IJ::similarHashes", "Error: " + ex.toString());
+		} finally {
+			distances.shutdown();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the pairs of a hash of hashes1 and a hash of hashes2 that are at
+	 * most at maxDistance as triplets i, j, distance
+	 * 
+	 * @param options
+	 *            {threads}
+	 */
+	public int[] similarHashes(long[] hashes1, long[] hashes2, int maxDistance, Object options) {
+		HashDistances distances = new HashDistances();
+		try {
+			distances.setParameters(checkParameter(options));
+			return distances.pairs(hashes1, hashes2, maxDistance);
+		} catch (Exception ex) {
+			appendError("IJ::similarHashes", "Error: " + ex.toString());
+		} finally {
+			distances.shutdown();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns an index of the hashes for the nearest and within queries,
+	 * faster than a scan on large collections
+	 * 
+	 * @param hashes
+	 *            the 64 bits hashes, their ids are their positions
+	 */
+	public HashIndex createHashIndex(long[] hashes) {
+		try {
+			return new HashIndex(hashes);
+		} catch (Exception ex) {
+			appendError("IJ::createHashIndex", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Saves the hashes of the index in a file
+	 * 
+	 * @return true if it succeeded
+	 */
+	public boolean saveHashIndex(String basedir, String basedirkey,
+			HashIndex index, String filename) {
+		try {
+			String fullFilename = SecureFileManager.getValidatedFilename(
+					basedir, basedirkey, filename);
+			if (fullFilename == null) {
+				appendError("IJ::saveHashIndex", "The file path is null");
+				return false;
+			}
+			SecureFileManager.mkdir(basedir, basedirkey,
+					filename.replaceAll("[^/]*$", ""));
+			OutputStream stream = new BufferedOutputStream(
+					new FileOutputStream(fullFilename));
+			try {
+				index.save(stream);
+			} finally {
+				stream.close();
+			}
+			return true;
+		} catch (Exception ex) {
+			appendError("IJ::saveHashIndex", "Error: " + ex.toString());
+		}
+		return false;
+	}
+
+	/**
+	 * Loads an index saved by saveHashIndex, the hashes keep their ids
+	 */
+	public HashIndex loadHashIndex(String basedir, String basedirkey,
+			String filename) {
+		try {
+			String fullFilename = SecureFileManager.getValidatedFilename(
+					basedir, basedirkey, filename);
+			if (fullFilename == null) {
+				appendError("IJ::loadHashIndex", "The file path is null");
+				return null;
+			}
+			InputStream stream = new BufferedInputStream(new FileInputStream(
+					fullFilename));
+			try {
+				return HashIndex.load(stream);
+			} finally {
+				stream.close();
+			}
+		} catch (Exception ex) {
+			appendError("IJ::loadHashIndex", "Error: " + ex.toString());
+		}
+		return null;
+	}
+
 	/**
 	 * This function accepts a String parameter
 	 * 
@@ -34,6 +34,50 @@ IJ.loadBase64=function(data) {
 	return new IJ(IJAPI.loadBase64(Global.basedir, Global.basedirkey, data));
 }
 
+/**
+ * @function textureBatch(files, options)
+ * Applies a texture filter to every file and saves the result next to it
+ * Decoding, filtering and encoding of different files overlap
+ * @param	files:[string]	The paths of the images
+ * @param	options:+Object	Object containing the options
+ * @option	method			Texture filter, possible values: lbp, ifh, tamura (Default: lbp)
+ * @option	lowMemory		ifh computes its values twice instead of keeping them for every pixel, tamura always does (Default: false)
+ * @option	suffix			Added to the name of the file of the result (Default: -texture)
+ * @option	format			Format of the result: png, jpg, tif... (Default: png)
+ * @option	quality			Quality for jpeg results, between 0 and 100 (Default: 100)
+ * @option	decodeThreads	Number of threads that read the files
+ * @option	filterThreads	Number of threads that apply the filter
+ * @option	encodeThreads	Number of threads that save the results
+ * @option	maxInFlight		Maximal number of images in memory at the same time
+ * @return	[Object]		For every file: file, success and the output path or the error
+ */
+IJ.textureBatch=function(files, options) {
+	var checked=[];
+	for (var i=0; i<files.length; i++) {
+		checked.push(File.checkGlobal(files[i]));
+	}
+	return JSON.parse(IJAPI.textureBatch(Global.basedir, Global.basedirkey, checked, options));
+};
+
+/**
+ * @function hashBatch(files, options)
+ * Computes the hash of every file on a pool of threads, the images are decoded with a subsampling at a size that is enough for the hash
+ * @param	files:[string]	The paths of the images
+ * @param	options:+Object	Object containing the options
+ * @option	method			Possible values: average, difference, dct, wavelet (Default: average)
+ * @option	bits			Number of bits of the hashes, 64 or 256 (Default: 64)
+ * @option	minSize			Smallest side of a decoded image (Default: 256)
+ * @option	threads			Number of threads that hash the files
+ * @return	?				The hashes with getHashes(), the ones of the file i from i*bits/64 to (i+1)*bits/64, and getErrors(), null for the files that were hashed
+ */
+IJ.hashBatch=function(files, options) {
+	var checked=[];
+	for (var i=0; i<files.length; i++) {
+		checked.push(File.checkGlobal(files[i]));
+	}
+	return IJAPI.hashBatch(Global.basedir, Global.basedirkey, checked, options);
+};
+
 /**
  * @function hashDistance(hash1, hash2)
  * Returns the Hamming distance between the two hashes
@@ -45,6 +89,91 @@ IJ.hashDistance=function(hash1,hash2) {
 	return IJAPI.hashDistance(hash1,hash2);
 };
 
+/**
+ * @function hashDistances(hash, hashes)
+ * Returns the Hamming distance between the hash and every hash of the array
+ * Can also compare two arrays: hashDistances(hashes1, hashes2, options), the distance between hashes1[i] and hashes2[j] is then at i*hashes2.length+j
+ * @param 	hash:number		The hash
+ * @param 	hashes:[number]	The hashes to compare it to
+ * @option	threads			Number of threads that compare the arrays
+ * @return	[number]		The distances, between 0 and 64
+ */
+IJ.hashDistances=function(hash, hashes, options) {
+	if (typeof hash == "number") {
+		return IJAPI.hashDistances(hash, hashes);
+	}
+	return IJAPI.hashDistances(hash, hashes, options);
+};
+
+/**
+ * @function nearestHashes(hash, hashes, k)
+ * Returns the indexes of the k hashes of the array that are the nearest to the hash, from the nearest to the farthest
+ * Can also search several hashes: nearestHashes(queries, hashes, k, options), the indexes of queries[i] are then from i*k to (i+1)*k
+ * @param 	hash:number		The hash
+ * @param 	hashes:[number]	The hashes that are searched
+ * @param 	k:number		The number of indexes
+ * @option	threads			Number of threads that search the queries
+ * @return	[number]		The indexes of the nearest hashes
+ */
+IJ.nearestHashes=function(hash, hashes, k, options) {
+	if (typeof hash == "number") {
+		return IJAPI.nearestHashes(hash, hashes, k);
+	}
+	return IJAPI.nearestHashes(hash, hashes, k, options);
+};
+
+/**
+ * @function similarHashes(hashes, maxDistance, options)
+ * Returns the pairs of hashes of the array that are at most at maxDistance as triplets i, j, distance with i&lt;j
+ * Can also compare two arrays: similarHashes(hashes1, hashes2, maxDistance, options), the triplets are then i in hashes1, j in hashes2, distance
+ * @param 	hashes:[number]		The hashes
+ * @param 	maxDistance:number	The maximal distance of a pair
+ * @param	options:+Object		Object containing the options
+ * @option	threads				Number of threads that compare the hashes
+ * @return	[number]			The triplets, one after the other
+ */
+IJ.similarHashes=function(hashes, maxDistance, options) {
+	if (typeof maxDistance != "number") {
+		// similarHashes(hashes1, hashes2, maxDistance, options)
+		return IJAPI.similarHashes(hashes, maxDistance, options, arguments[3]);
+	}
+	return IJAPI.similarHashes(hashes, maxDistance, options);
+};
+
+/**
+ * @function createHashIndex(hashes)
+ * Returns an index of 64 bits hashes for the near duplicate search, faster than comparing every hash on large collections
+ * The index has the methods add(hash) and addAll(hashes) that return the id of the (first) added hash, get(id), size(),
+ * nearest(hash, k) that returns the ids of the k nearest hashes and within(hash, radius) that returns the ids of the hashes at most at radius,
+ * both from the nearest to the farthest
+ * @param	hashes:[number]	The hashes of the index, their ids are their positions (Default: empty)
+ * @return	?				The index
+ */
+IJ.createHashIndex=function(hashes) {
+	return IJAPI.createHashIndex(hashes ? hashes : []);
+};
+
+/**
+ * @function saveHashIndex(index, path)
+ * Saves the hashes of an index created by createHashIndex
+ * @param	index:?			The index
+ * @param	path:string		physical path in which to save the index
+ * @return	bool			If it succeeded saving or not
+ */
+IJ.saveHashIndex=function(index, path) {
+	return IJAPI.saveHashIndex(Global.basedir, Global.basedirkey, index, File.checkGlobal(path));
+};
+
+/**
+ * @function loadHashIndex(path)
+ * Loads an index saved by saveHashIndex, the hashes keep their ids
+ * @param	path:string		The path of the index
+ * @return	?				The index
+ */
+IJ.loadHashIndex=function(path) {
+	return IJAPI.loadHashIndex(Global.basedir, Global.basedirkey, File.checkGlobal(path));
+};
+
 /**
  * @object IJ.prototype
  * Methods of the IJ object
@@ -69,10 +198,10 @@ IJ.prototype = {
 		 * Saves the given image as a transparent png
 		 * Transparency is based on the mask and the threshold specified in it
 		 * @param 		path:string		physical path in which to save the image
-		 * @param		mask:+IJ 		Image containing the mask
+		 * @param		mask:+IJ 		Image containing the mask, or a mask created by createRunLengthMask
 		 */
 		saveTransparentPng: function(path, mask) {
-			this.EIJ.saveTransparentPng(File.checkGlobal(path), mask.EIJ);
+			this.EIJ.saveTransparentPng(File.checkGlobal(path), mask instanceof IJ ? mask.EIJ : mask);
 		},
 
 
@@ -153,6 +282,111 @@ IJ.prototype = {
 			return new IJ(eij);
 		},
 
+		/**
+		 * @function 		createRunLengthMask(options)
+		 * Generates a mask like createMask but only keeps the runs of selected pixels of every row
+		 * The mask has the methods getArea(), getRunCount(), getBounds(), contains(x, y),
+		 * union(mask), intersection(mask) and difference(mask)
+		 * It can be given to getRois, paintMask, transparentMask and saveTransparentPng
+		 * @param		options:+Object	Object containing the options
+		 * @option		method			Name of the method to use to determine the threshold, see createMask (Default: Default)
+		 * @option		darkBackground	Boolean to specify that the background is dark (Default: true)
+		 * @return		?				The mask
+		 */
+		createRunLengthMask: function(options) {
+			return this.EIJ.createRunLengthMask(options);
+		},
+
+		/**
+		 * @function		erode(radius)
+		 * Erodes the mask by a square of side 2*radius+1
+		 * The selected pixels are the ones between the thresholds of the mask, or the ones that are not 0 if it has no threshold
+		 * The result is a binary mask whose selected pixels are 255
+		 * @param	radius:number	Half of the side of the square minus 1
+		 * @return 	!this
+		 */
+		erode: function(radius) {
+			this.EIJ.erode(radius);
+			return this;
+		},
+
+		/**
+		 * @function		dilate(radius)
+		 * Dilates the mask by a square of side 2*radius+1, see erode
+		 * @param	radius:number	Half of the side of the square minus 1
+		 * @return 	!this
+		 */
+		dilate: function(radius) {
+			this.EIJ.dilate(radius);
+			return this;
+		},
+
+		/**
+		 * @function		open(radius)
+		 * Erosion followed by a dilation, removes what is narrower than the square, see erode
+		 * @param	radius:number	Half of the side of the square minus 1
+		 * @return 	!this
+		 */
+		open: function(radius) {
+			this.EIJ.open(radius);
+			return this;
+		},
+
+		/**
+		 * @function		close(radius)
+		 * Dilation followed by an erosion, fills what is narrower than the square, see erode
+		 * @param	radius:number	Half of the side of the square minus 1
+		 * @return 	!this
+		 */
+		close: function(radius) {
+			this.EIJ.close(radius);
+			return this;
+		},
+
+		/**
+		 * @function		fillHoles()
+		 * Selects the background that is surrounded by the mask, see erode
+		 * @return 	!this
+		 */
+		fillHoles: function() {
+			this.EIJ.fillHoles();
+			return this;
+		},
+
+		/**
+		 * @function		removeSmallObjects(minSurface)
+		 * Removes the objects of the mask that have less than minSurface pixels, see erode
+		 * @param	minSurface:number	Minimal number of pixels of the objects that are kept
+		 * @return 	!this
+		 */
+		removeSmallObjects: function(minSurface) {
+			this.EIJ.removeSmallObjects(minSurface);
+			return this;
+		},
+
+		/**
+		 * @function		watershed(options)
+		 * Separates the touching objects of the mask along the lines of the watershed of its distance map
+		 * The result is a binary mask whose selected pixels are 255, for getRois or split
+		 * @param	options:+Object	Object containing the options
+		 * @option	tolerance		A maximum of the distance map that is less than tolerance pixels above the saddle to a higher one does not make a separate object (Default: 0.5)
+		 * @return 	!this
+		 */
+		watershed: function(options) {
+			this.EIJ.watershed(options);
+			return this;
+		},
+
+		/**
+		 * @function		distanceMap()
+		 * Replaces the mask by the distance of its selected pixels to the nearest pixel that is not selected, in a 32 bits image
+		 * @return 	!this
+		 */
+		distanceMap: function() {
+			this.EIJ.distanceMap();
+			return this;
+		},
+
 		/**
 		 * @function		analyze(mask, options)
 		 * Returns an object containing all the information about an image
@@ -220,10 +454,68 @@ IJ.prototype = {
 			return split;
 		},
 
+		/**
+		 * @function		splitIterator(mask, options)
+		 * Returns an iterator over the images of split, every image is only cropped when it is asked for
+		 * Can also be called with rois: splitIterator(Roi[] rois, options)
+		 * @param	mask:+IJ		an IJ picture that has a threshold and should be generated with "createMask"
+		 * @param	options:+Object	Object containing the options, the ones of split to select the rois
+		 * @option	reuse			Copy the images of the same size in the same buffer, an image is then only valid until the next one (Default: false)
+		 * @example	var crops = image.splitIterator(rois); while (crops.hasNext()) { crops.next().save(...); }
+		 * @return 	Object			Iterator with hasNext(), next() that returns a +IJ, getIndex(), getRoi() and size()
+		 */
+		splitIterator: function(mask, options) {
+			var javaSplitter;
+			if(mask instanceof IJ) {
+				javaSplitter=this.EIJ.splitIterator(mask.EIJ, options);
+			} else {
+				javaSplitter=this.EIJ.splitIterator(mask, options);
+			}
+			return {
+				hasNext: function() {
+					return javaSplitter.hasNext();
+				},
+				next: function() {
+					return new IJ(javaSplitter.next());
+				},
+				getIndex: function() {
+					return javaSplitter.getIndex();
+				},
+				getRoi: function() {
+					return javaSplitter.getRoi();
+				},
+				size: function() {
+					return javaSplitter.size();
+				}
+			};
+		},
+
+		/**
+		 * @function		saveSplit(mask, prefix, options)
+		 * Saves the images of split without keeping them in memory, the image of the roi i is saved in prefix + i + "." + format
+		 * Can also be called with rois: saveSplit(Roi[] rois, prefix, options)
+		 * @param	mask:+IJ		an IJ picture that has a threshold and should be generated with "createMask"
+		 * @param	prefix:string	physical path to which the index of the roi and the extension are added
+		 * @param	options:+Object	Object containing the options, the ones of split to select the rois
+		 * @option	format			Format of the images: png, jpg, tif... (Default: png)
+		 * @option	quality			Quality for jpeg images, possible values between 0 and 100 (Default 100)
+		 * @option	threads			Number of threads that save the images
+		 * @return	[Object]		For every roi: index, success and the output path or the error
+		 */
+		saveSplit: function(mask, prefix, options) {
+			var result;
+			if(mask instanceof IJ) {
+				result=this.EIJ.saveSplit(mask.EIJ, File.checkGlobal(prefix), options);
+			} else {
+				result=this.EIJ.saveSplit(mask, File.checkGlobal(prefix), options);
+			}
+			return JSON.parse(result);
+		},
+
 		/**
 		 * @function		paintMask(mask, options)
 		 * Returns an image with painted mask
-		 * @param	mask:+IJ		The mask to paint
+		 * @param	mask:+IJ		The mask to paint, or a mask created by createRunLengthMask
 		 * @param	options:+Object	Object containing the options
 		 * @option	strokeColor		color of the stroke
 		 * @option	strokeSize		width of the stroke
@@ -231,7 +523,18 @@ IJ.prototype = {
 		 * @return 	+IJ				New image with painted mask
 		 */
 		paintMask: function(mask, options) {
-			return new IJ(this.EIJ.paintMask(mask.EIJ, options));
+			return new IJ(this.EIJ.paintMask(mask instanceof IJ ? mask.EIJ : mask, options));
+		},
+
+		/**
+		 * @function		transparentMask(mask)
+		 * Returns an image where the pixels of the mask are painted in white
+		 * @param	mask:+IJ		The mask, or a mask created by createRunLengthMask
+		 * 
+		 * @return 	+IJ				New image with the painted pixels
+		 */
+		transparentMask: function(mask) {
+			return new IJ(this.EIJ.transparentMask(mask instanceof IJ ? mask.EIJ : mask));
 		},
 
 		/**
@@ -324,6 +627,8 @@ IJ.prototype = {
 		/**
 		 * @function		getRois(options)
 		 * Returns an array of region of interest based on a mask
+		 * The mask selects the pixels between its thresholds, or the pixels that are not 0 if it has no threshold
+		 * Can also be called with a mask created by createRunLengthMask: getRois(mask, options)
 		 * @param 	options:+Object	Object containing the options
 		 * @option	minLength		minimum length of the selected area
 		 * @option	maxLength		maximal length of the selected area
@@ -338,8 +643,12 @@ IJ.prototype = {
 		 * @example	mask.getRois();
 		 * @return 	[?]				Array containing the rois
 		 */
-		getRois: function(options) {
-			return this.EIJ.getRois(options);
+		getRois: function(mask, options) {
+			if(mask && mask.getRunCount) {
+				return this.EIJ.getRois(mask, options);
+			}
+			// called with the options only
+			return this.EIJ.getRois(mask);
 		},
 
     /**
@@ -398,22 +707,50 @@ IJ.prototype = {
 		},
 
 		/**
-		 * @function		texture()
+		 * @function		texture(options)
 		 * Applies a texture filter to the image
-		 * @return 		!this
+		 * @param	options:+Object	Object containing the options
+		 * @option	method			Texture filter, possible values: lbp, ifh, tamura (Default: lbp)
+		 * @option	lowMemory		ifh computes its values twice instead of keeping them for every pixel, tamura always does (Default: false)
+		 * @return 	!this
 		 */
-		texture: function() {
-			this.EIJ.texture();
+		texture: function(options) {
+			this.EIJ.texture(options);
 			return this;
 		},
 
 		/**
-		 * @function 		getColor()
-		 * Returns the number of colors
-		 * @return 		number
+		 * @function		textureFeatures(rois, options)
+		 * Returns a texture descriptor of the image without modifying it
+		 * Can also be called without rois: textureFeatures(options)
+		 * @param	rois:[?]		Array containing the regions of interest, one descriptor is returned for each
+		 * @param	options:+Object	Object containing the options
+		 * @option	method			Texture descriptor, possible values: lbp, ifh, tamura (Default: lbp)
+		 * @option	variant			lbp codes, possible values: basic, uniform, rotation (Default: basic)
+		 * @option	radius			lbp radius of the neighbourhood (Default: 1)
+		 * @option	points			lbp number of neighbours (Default: 8)
+		 * @option	bins			ifh and tamura number of bins of the histogram (Default: 32 for ifh, 16 for tamura)
+		 * @option	normalize		divides the histograms by their total (Default: true)
+		 * @return	[number]		The histogram for lbp and ifh, coarseness, contrast and directionality for tamura; an array of them with rois
 		 */
-		getColor: function() {
-			return this.EIJ.getColor();
+		textureFeatures: function(rois, options) {
+			if(rois instanceof Array) {
+				return this.EIJ.textureFeatures(rois, options);
+			}
+			return this.EIJ.textureFeatures(rois);
+		},
+
+		/**
+		 * @function 		getColor(options)
+		 * Returns the number of colors, with 5 bits per channel by default
+		 * @param	options:+Object	Object containing the options
+		 * @option	bits			Bits per color, 15 or 24 (Default: 15)
+		 * @option	estimate		Returns a HyperLogLog estimate of the number of 24 bits colors, it uses 2^precision bytes (16 KB by default) instead of the 2 MB of the exact count (Default: false)
+		 * @option	precision		Precision of the estimate, between 4 and 18 (Default: 14)
+		 * @return 	number
+		 */
+		getColor: function(options) {
+			return this.EIJ.getColor(options);
 		},
 
 		/**
@@ -460,11 +797,17 @@ IJ.prototype = {
 		},
 
 		/**
-		 * @function getHash()
-		 * Returns a 64 bits hash of the image
-		 * @return	number	An integer representing the hash
+		 * @function getHash(options)
+		 * Returns a 64 bits average hash of the image, or with options the hash of the chosen method in an array of 64 bits integers
+		 * @param	options:+Object	Object containing the options
+		 * @option	method			Possible values: average, difference, dct, wavelet (Default: average)
+		 * @option	bits			Number of bits of the hash, 64 or 256 (Default: 64)
+		 * @return	number	An integer representing the hash, an array of them with options
 		 */
-		getHash: function() {
+		getHash: function(options) {
+			if (options) {
+				return this.EIJ.getHash(options);
+			}
 			return this.EIJ.getHash();
 		},
 
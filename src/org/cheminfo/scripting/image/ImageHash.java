@@ -0,0 +1,338 @@
+package org.cheminfo.scripting.image;
+
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Perceptual hashes of an image. The image is reduced to a few cells, every
+ * cell is the average grey level of the pixels it covers, and the hash
+ * compares the cells (average and difference hashes) or their lowest
+ * frequencies (DCT and wavelet hashes, that depend less on the gamma and the
+ * contrast). The pixels are read once from the image, without
+ * converting or resizing a copy of it.
+ *
+ * The grey level of an RGB pixel uses the weighting factors of ImageJ, like
+ * the grey conversion of EIJ, the 16 and 32 bits images are scaled from their
+ * display range to 0-255.
+ */
+public class ImageHash {
+	/**
+	 * The cells darker than their mean
+	 */
+	public static final String AVERAGE = "average";
+	/**
+	 * The cells darker than their right neighbour, dHash
+	 */
+	public static final String DIFFERENCE = "difference";
+	/**
+	 * The low frequencies of the discrete cosine transform above their
+	 * median, without the first row and column like pHash: the DC coefficient
+	 * would give a bit that is nearly always set
+	 */
+	public static final String DCT = "dct";
+	/**
+	 * The coarse Haar wavelet coefficients above their median
+	 */
+	public static final String WAVELET = "wavelet";
+
+	// the image is reduced to FACTOR times the side of the hash before its
+	// frequencies are computed
+	private static final int FACTOR = 4;
+	private static final Map<String, double[][]> COSINES =
+			new HashMap<String, double[][]>();
+
+	/**
+	 * Box averages the grey levels of the image in cellsX*cellsY cells. The
+	 * cell (cx, cy) covers the columns from cx*width/cellsX to
+	 * (cx+1)*width/cellsX, when the image is smaller than the cells some
+	 * pixels are in several cells.
+	 *
+	 * @param ip
+	 * @param cellsX
+	 * @param cellsY
+	 * @return the average grey levels, row by row
+	 */
+	public static double[] cells(ImageProcessor ip, int cellsX, int cellsY) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int[] xStart = new int[cellsX];
+		int[] xEnd = new int[cellsX];
+		for (int cx = 0; cx < cellsX; cx++) {
+			xStart[cx] = (int) ((long) cx * width / cellsX);
+			xEnd[cx] = Math.max((int) ((long) (cx + 1) * width / cellsX),
+					xStart[cx] + 1);
+		}
+		double[] cells = new double[cellsX * cellsY];
+		Object pixels = ip.getPixels();
+		double[] weights = ColorProcessor.getWeightingFactors();
+		int[] table = pixels instanceof byte[] ? greyTable(ip) : null;
+		double min = ip.getMin();
+		double scale = ip.getMax() > min ? 255.0 / (ip.getMax() - min) : 1;
+		for (int cy = 0; cy < cellsY; cy++) {
+			int yStart = (int) ((long) cy * height / cellsY);
+			int yEnd = Math.max((int) ((long) (cy + 1) * height / cellsY),
+					yStart + 1);
+			for (int cx = 0; cx < cellsX; cx++) {
+				double grey;
+				if (pixels instanceof int[]) {
+					// the channels are summed separately and weighted once
+					int[] colors = (int[]) pixels;
+					long red = 0, green = 0, blue = 0;
+					for (int y = yStart; y < yEnd; y++) {
+						int offset = y * width;
+						for (int x = xStart[cx]; x < xEnd[cx]; x++) {
+							int c = colors[offset + x];
+							red += (c >> 16) & 0xff;
+							green += (c >> 8) & 0xff;
+							blue += c & 0xff;
+						}
+					}
+					grey = red * weights[0] + green * weights[1] + blue
+							* weights[2];
+				} else if (table != null) {
+					byte[] bytes = (byte[]) pixels;
+					long sum = 0;
+					for (int y = yStart; y < yEnd; y++) {
+						int offset = y * width;
+						for (int x = xStart[cx]; x < xEnd[cx]; x++) {
+							sum += table[bytes[offset + x] & 0xff];
+						}
+					}
+					grey = sum;
+				} else {
+					double sum = 0;
+					for (int y = yStart; y < yEnd; y++) {
+						for (int x = xStart[cx]; x < xEnd[cx]; x++) {
+							double value = (ip.getf(x, y) - min) * scale;
+							sum += value < 0 ? 0 : value > 255 ? 255 : value;
+						}
+					}
+					grey = sum;
+				}
+				cells[cy * cellsX + cx] = grey
+						/ ((long) (yEnd - yStart) * (xEnd[cx] - xStart[cx]));
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * The grey level of the values of an 8 bits image, through its lookup
+	 * table when it is a color one
+	 */
+	private static int[] greyTable(ImageProcessor ip) {
+		int[] table = new int[256];
+		ColorModel model = ip.getColorModel();
+		if (ip.isColorLut() && model instanceof IndexColorModel) {
+			double[] weights = ColorProcessor.getWeightingFactors();
+			IndexColorModel lut = (IndexColorModel) model;
+			for (int i = 0; i < Math.min(256, lut.getMapSize()); i++) {
+				table[i] = (int) Math.round(lut.getRed(i) * weights[0]
+						+ lut.getGreen(i) * weights[1] + lut.getBlue(i)
+						* weights[2]);
+			}
+		} else {
+			for (int i = 0; i < 256; i++) {
+				table[i] = i;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * The average hash: a bit per cell of an 8x8 reduction of the image, set
+	 * when the cell is darker than the mean of the cells. The first cell is
+	 * the highest bit.
+	 * http://www.hackerfactor.com/blog/index.php?/archives/432-Looks-Like-It.html
+	 *
+	 * @param ip
+	 * @return the 64 bits hash
+	 */
+	public static long averageHash(ImageProcessor ip) {
+		return hash(ip, AVERAGE, 64)[0];
+	}
+
+	/**
+	 * @param ip
+	 * @param method
+	 *            AVERAGE, DIFFERENCE, DCT or WAVELET
+	 * @param bits
+	 *            64 or 256
+	 * @return the bits of the hash, from the highest bit of the first long
+	 */
+	public static long[] hash(ImageProcessor ip, String method, int bits) {
+		int side;
+		if (bits == 64)
+			side = 8;
+		else if (bits == 256)
+			side = 16;
+		else
+			throw new IllegalArgumentException(
+					"The hash must have 64 or 256 bits: " + bits);
+		boolean[] set = new boolean[bits];
+		if (AVERAGE.equals(method)) {
+			double[] cells = cells(ip, side, side);
+			double mean = 0;
+			for (double cell : cells) {
+				mean += cell;
+			}
+			mean /= cells.length;
+			for (int i = 0; i < bits; i++) {
+				set[i] = cells[i] < mean;
+			}
+		} else if (DIFFERENCE.equals(method)) {
+			// a bit per pair of neighbour cells of a row
+			double[] cells = cells(ip, side + 1, side);
+			for (int y = 0; y < side; y++) {
+				for (int x = 0; x < side; x++) {
+					int cell = y * (side + 1) + x;
+					set[y * side + x] = cells[cell + 1] > cells[cell];
+				}
+			}
+		} else if (DCT.equals(method)) {
+			// the frequencies 1 to side in each direction
+			int n = FACTOR * side;
+			double[] frequencies = dct(cells(ip, n, n), n, side + 1);
+			double[] coefficients = new double[side * side];
+			for (int v = 0; v < side; v++) {
+				System.arraycopy(frequencies, (v + 1) * (side + 1) + 1,
+						coefficients, v * side, side);
+			}
+			threshold(coefficients, set);
+		} else if (WAVELET.equals(method)) {
+			int n = FACTOR * side;
+			double[] coefficients = haar(cells(ip, n, n), n, side);
+			threshold(coefficients, set);
+		} else {
+			throw new IllegalArgumentException("Unknown hash method: "
+					+ method);
+		}
+		long[] hash = new long[bits / 64];
+		for (int i = 0; i < bits; i++) {
+			hash[i >> 6] = (hash[i >> 6] << 1) | (set[i] ? 1 : 0);
+		}
+		return hash;
+	}
+
+	/**
+	 * Sets the bits of the values that are above their median
+	 */
+	private static void threshold(double[] values, boolean[] set) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int middle = sorted.length / 2;
+		double median = (sorted[middle - 1] + sorted[middle]) / 2;
+		for (int i = 0; i < values.length; i++) {
+			set[i] = values[i] > median;
+		}
+	}
+
+	/**
+	 * The lowest frequencies of the 2D DCT-II, separable: the rows and then
+	 * the columns are multiplied by the cosines of the kept frequencies
+	 *
+	 * @param cells
+	 *            n*n values
+	 * @param n
+	 * @param count
+	 *            the number of frequencies kept in each direction
+	 * @return count*count coefficients, row by row
+	 */
+	private static double[] dct(double[] cells, int n, int count) {
+		double[][] basis = cosines(n, count);
+		// rows[y * count + u] is the frequency u of the row y
+		double[] rows = new double[n * count];
+		for (int y = 0; y < n; y++) {
+			for (int u = 0; u < count; u++) {
+				double[] cosine = basis[u];
+				double sum = 0;
+				for (int x = 0; x < n; x++) {
+					sum += cells[y * n + x] * cosine[x];
+				}
+				rows[y * count + u] = sum;
+			}
+		}
+		double[] coefficients = new double[count * count];
+		for (int v = 0; v < count; v++) {
+			double[] cosine = basis[v];
+			for (int u = 0; u < count; u++) {
+				double sum = 0;
+				for (int y = 0; y < n; y++) {
+					sum += rows[y * count + u] * cosine[y];
+				}
+				coefficients[v * count + u] = sum;
+			}
+		}
+		return coefficients;
+	}
+
+	/**
+	 * @return cos((2x+1) u pi / 2n) for the count first frequencies, they
+	 *         are computed once for every size
+	 */
+	private static synchronized double[][] cosines(int n, int count) {
+		String key = n + "x" + count;
+		double[][] basis = COSINES.get(key);
+		if (basis == null) {
+			basis = new double[count][n];
+			for (int u = 0; u < count; u++) {
+				for (int x = 0; x < n; x++) {
+					basis[u][x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * n));
+				}
+			}
+			COSINES.put(key, basis);
+		}
+		return basis;
+	}
+
+	/**
+	 * Full 2D Haar decomposition: the averages of the pairs of rows and
+	 * columns go to the top left quarter, their halved differences to the
+	 * other quarters, and the top left quarter is decomposed again.
+	 *
+	 * @param cells
+	 *            n*n values, n is a power of 2
+	 * @param n
+	 * @param count
+	 * @return the top left count*count coefficients, row by row: the
+	 *         coarsest averages and details
+	 */
+	private static double[] haar(double[] cells, int n, int count) {
+		double[] values = cells.clone();
+		double[] line = new double[n];
+		for (int size = n; size > 1; size /= 2) {
+			int half = size / 2;
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < half; x++) {
+					double a = values[y * n + 2 * x];
+					double b = values[y * n + 2 * x + 1];
+					line[x] = (a + b) / 2;
+					line[half + x] = (a - b) / 2;
+				}
+				System.arraycopy(line, 0, values, y * n, size);
+			}
+			for (int x = 0; x < size; x++) {
+				for (int y = 0; y < half; y++) {
+					double a = values[2 * y * n + x];
+					double b = values[(2 * y + 1) * n + x];
+					line[y] = (a + b) / 2;
+					line[half + y] = (a - b) / 2;
+				}
+				for (int y = 0; y < size; y++) {
+					values[y * n + x] = line[y];
+				}
+			}
+		}
+		double[] coefficients = new double[count * count];
+		for (int y = 0; y < count; y++) {
+			System.arraycopy(values, y * n, coefficients, y * count, count);
+		}
+		return coefficients;
+	}
+}
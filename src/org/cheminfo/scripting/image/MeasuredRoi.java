@@ -0,0 +1,117 @@
+package org.cheminfo.scripting.image;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+import org.cheminfo.scripting.image.extraction.Particle;
+
+/**
+ * A roi with its measurements, they are taken once so that the filters and
+ * the sorting of getRois only compare numbers
+ */
+class MeasuredRoi {
+	private final Roi roi;
+	private final double length;
+	private final Rectangle bounds;
+	// the area and the centroid of a roi that does not come from a particle
+	// are only computed when they are needed, by rasterizing its mask
+	private boolean measured;
+	private int area;
+	private double xCentroid;
+	private double yCentroid;
+	private int imageWidth;
+	private int imageHeight;
+
+	MeasuredRoi(Particle particle) {
+		this.roi = particle.getRoi();
+		this.length = particle.getPerimeter();
+		this.bounds = particle.getBounds();
+		this.area = particle.getArea();
+		this.xCentroid = particle.getCentroidX();
+		this.yCentroid = particle.getCentroidY();
+		this.measured = true;
+	}
+
+	/**
+	 * @param roi
+	 * @param imageWidth
+	 * @param imageHeight
+	 *            the pixels of the roi outside of the image are not counted
+	 */
+	MeasuredRoi(Roi roi, int imageWidth, int imageHeight) {
+		this.roi = roi;
+		this.length = roi.getLength();
+		this.bounds = roi.getBounds();
+		this.imageWidth = imageWidth;
+		this.imageHeight = imageHeight;
+	}
+
+	private void measure() {
+		if (measured)
+			return;
+		ImageProcessor mask = roi.getMask();
+		long sumX = 0, sumY = 0;
+		int count = 0;
+		int startX = Math.max(bounds.x, 0);
+		int startY = Math.max(bounds.y, 0);
+		int endX = Math.min(bounds.x + bounds.width, imageWidth);
+		int endY = Math.min(bounds.y + bounds.height, imageHeight);
+		for (int y = startY; y < endY; y++) {
+			for (int x = startX; x < endX; x++) {
+				if (mask == null || mask.get(x - bounds.x, y - bounds.y) != 0) {
+					count++;
+					sumX += x;
+					sumY += y;
+				}
+			}
+		}
+		area = count;
+		xCentroid = count == 0 ? 0 : (double) sumX / count;
+		yCentroid = count == 0 ? 0 : (double) sumY / count;
+		measured = true;
+	}
+
+	Roi getRoi() {
+		return roi;
+	}
+
+	double getLength() {
+		return length;
+	}
+
+	int getX() {
+		return bounds.x;
+	}
+
+	int getY() {
+		return bounds.y;
+	}
+
+	int getWidth() {
+		return bounds.width;
+	}
+
+	int getHeight() {
+		return bounds.height;
+	}
+
+	/**
+	 * @return the number of pixels of the roi inside the image
+	 */
+	int getArea() {
+		measure();
+		return area;
+	}
+
+	double getXCentroid() {
+		measure();
+		return xCentroid;
+	}
+
+	double getYCentroid() {
+		measure();
+		return yCentroid;
+	}
+}
@@ -0,0 +1,269 @@
+package org.cheminfo.scripting.image;
+
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.cheminfo.scripting.image.filters.BandExecutor;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Measures a list of rois of an image. The rois are split in groups that are
+ * measured on the threads of a BandExecutor, every group sets its rois on its
+ * own processor that shares the pixels of the image, so the groups don't
+ * interfere.
+ */
+class RoiAnalyzer {
+	static final String BOUNDS = "bounds";
+	static final String SURFACE = "surface";
+	static final String CENTER_OF_MASS = "centerOfMass";
+	static final String CENTROID = "centroid";
+	static final String HISTOGRAM = "histogram";
+	static final String CONTOUR = "contour";
+	static final String ROUND_RECT_ARC_SIZE = "roundRectArcSize";
+	static final String MEAN = "mean";
+	static final String CHANNELS = "channels";
+
+	// names of the histograms of the channels, in the order of measureChannels
+	private static final String[] CHANNEL_NAMES = { "red", "green", "blue",
+			"hue", "saturation", "brightness" };
+
+	// the measurements when none are specified, the mean was not part of them
+	private static final String[] DEFAULT_MEASUREMENTS = { BOUNDS, SURFACE,
+			CENTER_OF_MASS, CENTROID, HISTOGRAM, CONTOUR, ROUND_RECT_ARC_SIZE };
+
+	private final ImageProcessor ip;
+	private Set<String> measurements = new HashSet<String>();
+	private boolean compactHistogram = false;
+	private BandExecutor executor = BandExecutor.getShared();
+
+	RoiAnalyzer(ImageProcessor ip) {
+		this.ip = ip;
+		for (String measurement : DEFAULT_MEASUREMENTS) {
+			measurements.add(measurement);
+		}
+	}
+
+	/**
+	 * @param parameters
+	 *            measurements: the names of the measurements separated by
+	 *            commas, or an array of names (bounds, surface, centerOfMass,
+	 *            centroid, histogram, contour, roundRectArcSize, mean,
+	 *            channels), histogram: "full" (default) the 256 bins,
+	 *            "compact" the bins between the first and the last one that
+	 *            are not empty with histogramOffset the index of the first
+	 *            one, or "none",
+	 *            threads: the number of threads
+	 */
+	void setParameters(JSONObject parameters) {
+		Object names = parameters.opt("measurements");
+		if (names instanceof JSONArray) {
+			JSONArray array = (JSONArray) names;
+			measurements.clear();
+			for (int i = 0; i < array.length(); i++) {
+				measurements.add(array.optString(i).trim());
+			}
+		} else if (names != null) {
+			measurements.clear();
+			for (String name : names.toString().split(",")) {
+				measurements.add(name.trim());
+			}
+		}
+		String histogram = parameters.optString(HISTOGRAM, "full");
+		if (histogram.equalsIgnoreCase("none")) {
+			measurements.remove(HISTOGRAM);
+		} else if (histogram.equalsIgnoreCase("compact")) {
+			compactHistogram = true;
+		}
+		if (parameters.has("threads")) {
+			executor = new BandExecutor(Math.max(parameters.optInt("threads",
+					1), 1));
+		}
+	}
+
+	/**
+	 * @param rois
+	 * @return the measurements of every roi, in the order of the rois
+	 */
+	JSONArray analyze(final Roi[] rois) throws JSONException {
+		if (measurements.contains(CHANNELS) && !(ip instanceof ColorProcessor))
+			throw new IllegalArgumentException(
+					"The channels can only be measured on RGB images");
+		final JSONObject[] stats = new JSONObject[rois.length];
+		try {
+			executor.execute(rois.length, new BandExecutor.Band() {
+				public void process(int band, int start, int end) {
+					ImageProcessor view = view(ip);
+					for (int i = start; i < end; i++) {
+						try {
+							stats[i] = measure(view, rois[i]);
+						} catch (JSONException ex) {
+							throw new IllegalStateException(ex);
+						}
+					}
+				}
+			});
+		} finally {
+			if (executor != BandExecutor.getShared())
+				executor.shutdown();
+		}
+		JSONArray results = new JSONArray();
+		for (JSONObject stat : stats) {
+			results.put(stat);
+		}
+		return results;
+	}
+
+	private JSONObject measure(ImageProcessor view, Roi roi)
+			throws JSONException {
+		JSONObject stat = new JSONObject();
+		view.setRoi(roi);
+		ImageStatistics is = view.getStatistics();
+		if (measurements.contains(BOUNDS)) {
+			stat.put("x", is.roiX);
+			stat.put("y", is.roiY);
+			stat.put("height", is.roiHeight);
+			stat.put("width", is.roiWidth);
+		}
+		if (measurements.contains(SURFACE))
+			stat.put("surface", is.pixelCount);
+		if (measurements.contains(MEAN))
+			stat.put("mean", is.mean);
+		if (measurements.contains(CENTER_OF_MASS)) {
+			stat.put("xCenterOfMass", is.xCenterOfMass);
+			stat.put("yCenterOfMass", is.yCenterOfMass);
+		}
+		if (measurements.contains(CENTROID)) {
+			stat.put("xCentroid", is.xCentroid);
+			stat.put("yCentroid", is.yCentroid);
+		}
+		if (measurements.contains(HISTOGRAM))
+			putHistogram(stat, "histogram", is.histogram);
+		if (measurements.contains(CHANNELS))
+			measureChannels(stat, roi);
+		if (measurements.contains(CONTOUR))
+			stat.put("contour", roi.getLength());
+		if (measurements.contains(ROUND_RECT_ARC_SIZE))
+			stat.put("roundRectArcSize", roi.getRoundRectArcSize());
+		return stat;
+	}
+
+	private void putHistogram(JSONObject stat, String name, int[] histogram)
+			throws JSONException {
+		if (compactHistogram) {
+			int first = 0;
+			while (first < histogram.length && histogram[first] == 0)
+				first++;
+			int last = histogram.length - 1;
+			while (last > first && histogram[last] == 0)
+				last--;
+			int[] bins = new int[Math.max(last - first + 1, 0)];
+			System.arraycopy(histogram, first, bins, 0, bins.length);
+			stat.put(name + "Offset", first);
+			stat.put(name, bins);
+		} else {
+			stat.put(name, histogram);
+		}
+	}
+
+	/**
+	 * Histograms and means of the red, green, blue, hue, saturation and
+	 * brightness of the pixels of the roi, in one pass over the packed RGB
+	 * pixels. The hue, saturation and brightness are the bytes of
+	 * ColorProcessor.getHSB, so the histograms are the ones of the images of
+	 * splitRGB and splitHSB.
+	 */
+	private void measureChannels(JSONObject stat, Roi roi)
+			throws JSONException {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int[] pixels = (int[]) ip.getPixels();
+		Rectangle bounds = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		byte[] maskPixels = mask == null ? null : (byte[]) mask.getPixels();
+		int startX = Math.max(bounds.x, 0);
+		int startY = Math.max(bounds.y, 0);
+		int endX = Math.min(bounds.x + bounds.width, width);
+		int endY = Math.min(bounds.y + bounds.height, height);
+
+		int[][] histograms = new int[CHANNEL_NAMES.length][256];
+		int[] red = histograms[0], green = histograms[1], blue = histograms[2];
+		int[] hue = histograms[3], saturation = histograms[4], brightness = histograms[5];
+		long[] sums = new long[CHANNEL_NAMES.length];
+		float[] hsb = new float[3];
+		int count = 0;
+		for (int y = startY; y < endY; y++) {
+			int offset = y * width;
+			int maskOffset = (y - bounds.y) * bounds.width - bounds.x;
+			for (int x = startX; x < endX; x++) {
+				if (maskPixels != null && maskPixels[maskOffset + x] == 0)
+					continue;
+				int c = pixels[offset + x];
+				int r = (c & 0xff0000) >> 16;
+				int g = (c & 0xff00) >> 8;
+				int b = c & 0xff;
+				Color.RGBtoHSB(r, g, b, hsb);
+				int h = (int) (hsb[0] * 255.0);
+				int s = (int) (hsb[1] * 255.0);
+				int v = (int) (hsb[2] * 255.0);
+				red[r]++;
+				green[g]++;
+				blue[b]++;
+				hue[h]++;
+				saturation[s]++;
+				brightness[v]++;
+				sums[0] += r;
+				sums[1] += g;
+				sums[2] += b;
+				sums[3] += h;
+				sums[4] += s;
+				sums[5] += v;
+				count++;
+			}
+		}
+		for (int i = 0; i < CHANNEL_NAMES.length; i++) {
+			if (measurements.contains(HISTOGRAM))
+				putHistogram(stat, CHANNEL_NAMES[i], histograms[i]);
+			stat.put(CHANNEL_NAMES[i] + "Mean", count == 0 ? 0
+					: (double) sums[i] / count);
+		}
+	}
+
+	/**
+	 * @return a processor on the pixels of ip with its own roi
+	 */
+	static ImageProcessor view(ImageProcessor ip) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		ImageProcessor view;
+		if (ip instanceof ByteProcessor) {
+			view = new ByteProcessor(width, height, (byte[]) ip.getPixels(),
+					ip.getColorModel());
+		} else if (ip instanceof ShortProcessor) {
+			view = new ShortProcessor(width, height, (short[]) ip.getPixels(),
+					ip.getColorModel());
+		} else if (ip instanceof FloatProcessor) {
+			view = new FloatProcessor(width, height, (float[]) ip.getPixels(),
+					ip.getColorModel());
+		} else if (ip instanceof ColorProcessor) {
+			view = new ColorProcessor(width, height, (int[]) ip.getPixels());
+		} else {
+			return ip.duplicate();
+		}
+		if (!(ip instanceof ColorProcessor))
+			view.setMinAndMax(ip.getMin(), ip.getMax());
+		view.setCalibrationTable(ip.getCalibrationTable());
+		return view;
+	}
+}
@@ -0,0 +1,182 @@
+package org.cheminfo.scripting.image;
+
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.cheminfo.scripting.image.filters.BandExecutor;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Crops the rois of an image one at a time, when they are asked for, instead
+ * of building all the crops of split at once. A script can go through the
+ * crops in a loop:
+ *
+ * <pre>
+ * var crops = image.splitIterator(rois);
+ * while (crops.hasNext()) {
+ * 	crops.next().save(...);
+ * }
+ * </pre>
+ *
+ * With reuse the pixels of a crop are copied in the buffer of the previous
+ * one when they have the same size, a crop is then only valid until the next
+ * one is asked for.
+ */
+public class RoiSplitter implements Iterator<EIJ> {
+	private final EIJ image;
+	private final Roi[] rois;
+	private final ImageProcessor view;
+	private boolean reuse = false;
+	private ImageProcessor scratch;
+	private int index = 0;
+
+	RoiSplitter(EIJ image, Roi[] rois) {
+		this.image = image;
+		this.rois = rois;
+		this.view = RoiAnalyzer.view(image.getProcessor());
+	}
+
+	/**
+	 * @param reuse
+	 *            copy the crops in the same buffer when they have the same
+	 *            size
+	 */
+	public void setReuse(boolean reuse) {
+		this.reuse = reuse;
+	}
+
+	public boolean isReuse() {
+		return reuse;
+	}
+
+	public boolean hasNext() {
+		return index < rois.length;
+	}
+
+	/**
+	 * @return the crop of the next roi
+	 */
+	public EIJ next() {
+		if (index >= rois.length)
+			throw new NoSuchElementException();
+		return new EIJ(image, crop(rois[index++]));
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return the number of rois
+	 */
+	public int size() {
+		return rois.length;
+	}
+
+	/**
+	 * @return the index of the roi of the next crop
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the roi of the last crop
+	 */
+	public Roi getRoi() {
+		return index == 0 ? null : rois[index - 1];
+	}
+
+	/**
+	 * Crops the bounding rectangle of the roi, like split
+	 */
+	private ImageProcessor crop(Roi roi) {
+		view.setRoi(roi);
+		if (!reuse)
+			return view.crop();
+		Rectangle bounds = view.getRoi();
+		if (scratch == null || scratch.getWidth() != bounds.width
+				|| scratch.getHeight() != bounds.height) {
+			scratch = view.createProcessor(bounds.width, bounds.height);
+		}
+		Object source = view.getPixels();
+		Object pixels = scratch.getPixels();
+		int width = view.getWidth();
+		for (int y = 0; y < bounds.height; y++) {
+			System.arraycopy(source, (bounds.y + y) * width + bounds.x, pixels,
+					y * bounds.width, bounds.width);
+		}
+		// drops the images cached by the processor
+		scratch.setPixels(pixels);
+		if (!(scratch instanceof ByteProcessor || scratch instanceof ColorProcessor))
+			scratch.resetMinAndMax();
+		return scratch;
+	}
+
+	/**
+	 * Saves the crops of the rois in parallel. Every thread crops and saves
+	 * its rois one after the other, so there are never more crops in memory
+	 * than threads.
+	 *
+	 * @param prefix
+	 *            the crop of the roi i is saved in prefix + i + "." + format
+	 * @param parameters
+	 *            format ("png" by default), quality, threads
+	 * @return for every roi the name of the saved image or the error
+	 */
+	static JSONArray save(final EIJ image, final Roi[] rois,
+			final String prefix, JSONObject parameters) throws JSONException {
+		final String format = parameters.optString("format", "png");
+		final JSONObject options = new JSONObject();
+		options.put("quality", parameters.optInt("quality", 100));
+		final String[] outputs = new String[rois.length];
+		final String[] errors = new String[rois.length];
+		BandExecutor executor = BandExecutor.getShared();
+		if (parameters.has("threads"))
+			executor = new BandExecutor(Math.max(
+					parameters.optInt("threads", 1), 1));
+		try {
+			executor.execute(rois.length, new BandExecutor.Band() {
+				public void process(int band, int start, int end) {
+					RoiSplitter splitter = new RoiSplitter(image, rois);
+					splitter.setReuse(true);
+					for (int i = start; i < end; i++) {
+						String output = prefix + i + "." + format;
+						try {
+							EIJ crop = new EIJ(image, splitter.crop(rois[i]));
+							if (crop.save(output, options))
+								outputs[i] = output;
+							else
+								errors[i] = "The image could not be saved";
+						} catch (RuntimeException ex) {
+							errors[i] = ex.toString();
+						}
+					}
+				}
+			});
+		} finally {
+			if (executor != BandExecutor.getShared())
+				executor.shutdown();
+		}
+		JSONArray results = new JSONArray();
+		for (int i = 0; i < rois.length; i++) {
+			JSONObject result = new JSONObject();
+			result.put("index", i);
+			result.put("success", errors[i] == null);
+			if (errors[i] == null)
+				result.put("output", outputs[i]);
+			else
+				result.put("error", errors[i]);
+			results.put(result);
+		}
+		return results;
+	}
+}
@@ -0,0 +1,207 @@
+package org.cheminfo.scripting.image;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Applies a texture filter to a list of files and saves the results. Decoding,
+ * filtering and encoding run on three pools of threads so that the images of
+ * the list overlap in the pipeline. The number of images that are between the
+ * start of their decoding and the end of their encoding is limited, so the
+ * memory used does not depend on the length of the list.
+ */
+public class TextureBatch {
+	private final IJ ij;
+	private final String basedir;
+	private final String key;
+	private String method = "lbp";
+	private String suffix = "-texture";
+	private String format = "png";
+	private int quality = 100;
+	private boolean lowMemory = false;
+	private int decodeThreads;
+	private int filterThreads;
+	private int encodeThreads;
+	private int maxInFlight;
+
+	/**
+	 * The outcome of one file
+	 */
+	private static class Result {
+		String file;
+		String output;
+		String error;
+	}
+
+	public TextureBatch(IJ ij, String basedir, String key) {
+		this.ij = ij;
+		this.basedir = basedir;
+		this.key = key;
+		int processors = Runtime.getRuntime().availableProcessors();
+		decodeThreads = Math.max(processors / 2, 1);
+		filterThreads = processors;
+		encodeThreads = Math.max(processors / 2, 1);
+		maxInFlight = 2 * processors;
+	}
+
+	/**
+	 * @param parameters
+	 *            method ("lbp", "ifh" or "tamura"), lowMemory, suffix and
+	 *            format of the saved files, quality, decodeThreads,
+	 *            filterThreads, encodeThreads and maxInFlight
+	 */
+	public void setParameters(JSONObject parameters) {
+		method = parameters.optString("method", method);
+		lowMemory = parameters.optBoolean("lowMemory", lowMemory);
+		suffix = parameters.optString("suffix", suffix);
+		format = parameters.optString("format", format);
+		quality = parameters.optInt("quality", quality);
+		decodeThreads = Math.max(parameters.optInt("decodeThreads",
+				decodeThreads), 1);
+		filterThreads = Math.max(parameters.optInt("filterThreads",
+				filterThreads), 1);
+		encodeThreads = Math.max(parameters.optInt("encodeThreads",
+				encodeThreads), 1);
+		maxInFlight = Math.max(parameters.optInt("maxInFlight", maxInFlight),
+				1);
+	}
+
+	/**
+	 * Processes all the files and waits for the end of the last one
+	 *
+	 * @param files
+	 * @return for every file its name, the name of the saved image or the
+	 *         error that stopped it
+	 * @throws InterruptedException
+	 */
+	public JSONArray process(String[] files) throws InterruptedException,
+			JSONException {
+		final Result[] results = new Result[files.length];
+		final CountDownLatch done = new CountDownLatch(files.length);
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		final ExecutorService decoders = createPool("decode", decodeThreads);
+		final ExecutorService filters = createPool("filter", filterThreads);
+		final ExecutorService encoders = createPool("encode", encodeThreads);
+		try {
+			for (int i = 0; i < files.length; i++) {
+				final Result result = new Result();
+				result.file = files[i];
+				results[i] = result;
+				// blocks the producer until an image leaves the pipeline
+				inFlight.acquire();
+				decoders.execute(new Stage(result, done, inFlight) {
+					void run(Result result) {
+						final EIJ image = decode(result.file);
+						filters.execute(new Stage(result, done, inFlight) {
+							void run(Result result) {
+								image.applyTexture(method, lowMemory);
+								encoders.execute(new Stage(result, done,
+										inFlight) {
+									void run(Result result) {
+										encode(image, result);
+										finish();
+									}
+								});
+							}
+						});
+					}
+				});
+			}
+			done.await();
+		} finally {
+			decoders.shutdownNow();
+			filters.shutdownNow();
+			encoders.shutdownNow();
+		}
+		JSONArray array = new JSONArray();
+		for (Result result : results) {
+			JSONObject object = new JSONObject();
+			object.put("file", result.file);
+			object.put("success", result.error == null);
+			if (result.error == null)
+				object.put("output", result.output);
+			else
+				object.put("error", result.error);
+			array.put(object);
+		}
+		return array;
+	}
+
+	/**
+	 * A step of the pipeline for one file. An exception ends the processing of
+	 * the file and is kept as its error.
+	 */
+	private abstract static class Stage implements Runnable {
+		private final Result result;
+		private final CountDownLatch done;
+		private final Semaphore inFlight;
+
+		Stage(Result result, CountDownLatch done, Semaphore inFlight) {
+			this.result = result;
+			this.done = done;
+			this.inFlight = inFlight;
+		}
+
+		public void run() {
+			try {
+				run(result);
+			} catch (Throwable ex) {
+				result.error = ex.toString();
+				finish();
+			}
+		}
+
+		/**
+		 * The file leaves the pipeline
+		 */
+		void finish() {
+			inFlight.release();
+			done.countDown();
+		}
+
+		abstract void run(Result result) throws Exception;
+	}
+
+	private EIJ decode(String file) {
+		EIJ image = ij.load(basedir, key, file);
+		if (image == null)
+			throw new IllegalArgumentException("Invalid file name");
+		if (image.getProcessor() == null)
+			throw new IllegalStateException("The image could not be decoded");
+		return image;
+	}
+
+	private void encode(EIJ image, Result result) {
+		String output = result.file.replaceAll("\\.[^./]*$", "") + suffix
+				+ "." + format;
+		JSONObject options = new JSONObject();
+		try {
+			options.put("quality", quality);
+		} catch (JSONException ex) {
+			throw new IllegalStateException(ex);
+		}
+		if (!image.save(output, options))
+			throw new IllegalStateException("The image could not be saved");
+		result.output = output;
+	}
+
+	private static ExecutorService createPool(final String name, int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "TextureBatch-" + name
+						+ "-" + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -0,0 +1,382 @@
+package org.cheminfo.scripting.image.extraction;
+
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Erosion, dilation, opening and closing of binary masks by a square of side
+ * 2 * radius + 1, and the removal of holes and of small objects. The rows are
+ * packed in 64 bits words: along the rows the square is built by doubling the
+ * shifted words, along the columns the van Herk / Gil-Werman algorithm needs
+ * 3 operations per word whatever the radius. The cost is about (width *
+ * height / 64) * (log2(radius) + 3) word operations.
+ *
+ * The part of the square that is outside of the image is ignored, the border
+ * of the image does not erode the objects that touch it.
+ */
+public class BinaryMorphology {
+	private final int width;
+	private final int height;
+	// number of words of a packed row
+	private final int words;
+	// bits of the last word of a row that are pixels
+	private final long lastMask;
+
+	/**
+	 * @param width
+	 * @param height
+	 */
+	public BinaryMorphology(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.words = (width + 63) >> 6;
+		this.lastMask = (width & 63) == 0 ? -1L : (1L << (width & 63)) - 1;
+	}
+
+	/**
+	 * The pixels of a mask image: the ones between the thresholds, or the ones
+	 * that are not 0 (not black for an RGB image) when the image has no
+	 * threshold
+	 *
+	 * @param ip
+	 * @return width*height pixels, 1 for the selected ones, 0 otherwise
+	 */
+	public static byte[] select(ImageProcessor ip) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		byte[] selected = new byte[width * height];
+		boolean thresholded = ip.getMinThreshold() != ImageProcessor.NO_THRESHOLD;
+		float min = thresholded ? (float) ip.getMinThreshold() : 0;
+		float max = thresholded ? (float) ip.getMaxThreshold() : 0;
+		Object pixels = ip.getPixels();
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[]) pixels;
+			for (int i = 0; i < selected.length; i++) {
+				int value = bytes[i] & 0xff;
+				if (thresholded ? value >= min && value <= max : value != 0)
+					selected[i] = 1;
+			}
+		} else if (pixels instanceof int[] && !thresholded) {
+			// the RGB images have no threshold, their black pixels are not
+			// selected
+			int[] colors = (int[]) pixels;
+			for (int i = 0; i < selected.length; i++) {
+				if ((colors[i] & 0xffffff) != 0)
+					selected[i] = 1;
+			}
+		} else {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					float value = ip.getf(x, y);
+					if (thresholded ? value >= min && value <= max
+							: value != 0)
+						selected[y * width + x] = 1;
+				}
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * @param mask
+	 *            width*height pixels, the ones that are not 0 are selected
+	 * @param radius
+	 * @return a pixel is kept if all the pixels of the square around it are
+	 *         selected
+	 */
+	public byte[] erode(byte[] mask, int radius) {
+		return unpack(erode(pack(mask), radius));
+	}
+
+	/**
+	 * @param mask
+	 * @param radius
+	 * @return a pixel is selected if a pixel of the square around it is
+	 *         selected
+	 */
+	public byte[] dilate(byte[] mask, int radius) {
+		return unpack(dilate(pack(mask), radius));
+	}
+
+	/**
+	 * Erosion followed by a dilation, removes the objects and the parts of
+	 * objects that are narrower than the square
+	 */
+	public byte[] open(byte[] mask, int radius) {
+		return unpack(dilate(erode(pack(mask), radius), radius));
+	}
+
+	/**
+	 * Dilation followed by an erosion, fills the holes and the gaps that are
+	 * narrower than the square
+	 */
+	public byte[] close(byte[] mask, int radius) {
+		return unpack(erode(dilate(pack(mask), radius), radius));
+	}
+
+	/**
+	 * Selects the background pixels that can not be reached from the border of
+	 * the image. The background is 4-connected, so the holes of 8-connected
+	 * objects are filled.
+	 *
+	 * @param mask
+	 * @return the mask with its holes filled
+	 */
+	public byte[] fillHoles(byte[] mask) {
+		byte[] background = new byte[mask.length];
+		for (int i = 0; i < mask.length; i++) {
+			if (mask[i] == 0)
+				background[i] = 1;
+		}
+		ConnectedComponents components = new ConnectedComponents(width,
+				height, ConnectedComponents.FOUR);
+		int count = components.label(background);
+		boolean[] hole = new boolean[count + 1];
+		for (int label = 1; label <= count; label++) {
+			Rectangle bounds = components.getBounds(label);
+			hole[label] = bounds.x > 0 && bounds.y > 0
+					&& bounds.x + bounds.width < width
+					&& bounds.y + bounds.height < height;
+		}
+		int[] labels = components.getLabels();
+		byte[] result = new byte[mask.length];
+		for (int i = 0; i < mask.length; i++) {
+			if (mask[i] != 0 || hole[labels[i]])
+				result[i] = 1;
+		}
+		return result;
+	}
+
+	/**
+	 * @param mask
+	 * @param minArea
+	 *            the objects with less pixels are removed
+	 * @param connectivity
+	 *            ConnectedComponents.FOUR or ConnectedComponents.EIGHT
+	 * @return the mask without the small objects
+	 */
+	public byte[] removeSmallObjects(byte[] mask, int minArea, int connectivity) {
+		ConnectedComponents components = new ConnectedComponents(width,
+				height, connectivity);
+		int count = components.label(mask);
+		boolean[] keep = new boolean[count + 1];
+		for (int label = 1; label <= count; label++) {
+			keep[label] = components.getArea(label) >= minArea;
+		}
+		int[] labels = components.getLabels();
+		byte[] result = new byte[mask.length];
+		for (int i = 0; i < mask.length; i++) {
+			if (keep[labels[i]])
+				result[i] = 1;
+		}
+		return result;
+	}
+
+	private long[] pack(byte[] mask) {
+		if (mask.length != width * height)
+			throw new IllegalArgumentException("The mask must have "
+					+ (width * height) + " pixels");
+		long[] packed = new long[words * height];
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			int row = y * words;
+			for (int x = 0; x < width; x++) {
+				if (mask[offset + x] != 0)
+					packed[row + (x >> 6)] |= 1L << (x & 63);
+			}
+		}
+		return packed;
+	}
+
+	private byte[] unpack(long[] packed) {
+		byte[] mask = new byte[width * height];
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			int row = y * words;
+			for (int x = 0; x < width; x++) {
+				if ((packed[row + (x >> 6)] & (1L << (x & 63))) != 0)
+					mask[offset + x] = 1;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * The dilation is the complement of the erosion of the complement, the
+	 * outside of the image stays neutral in both
+	 */
+	private long[] dilate(long[] packed, int radius) {
+		return complement(erode(complement(packed), radius));
+	}
+
+	private long[] complement(long[] packed) {
+		long[] result = new long[packed.length];
+		for (int i = 0; i < packed.length; i++) {
+			result[i] = ~packed[i];
+		}
+		if (lastMask != -1L) {
+			for (int row = words - 1; row < packed.length; row += words) {
+				result[row] &= lastMask;
+			}
+		}
+		return result;
+	}
+
+	private long[] erode(long[] packed, int radius) {
+		if (radius <= 0)
+			return packed.clone();
+		return erodeColumns(erodeRows(packed, radius), radius);
+	}
+
+	/**
+	 * A pixel is kept if the pixels at most radius pixels to its left and to
+	 * its right are selected
+	 */
+	private long[] erodeRows(long[] packed, int radius) {
+		long[] result = new long[packed.length];
+		long[] forward = new long[words];
+		long[] backward = new long[words];
+		long[] shifted = new long[words];
+		for (int y = 0; y < height; y++) {
+			int offset = y * words;
+			// [x, x + radius] and [x - radius, x]
+			System.arraycopy(packed, offset, forward, 0, words);
+			erodeRow(forward, radius + 1, true, shifted);
+			System.arraycopy(packed, offset, backward, 0, words);
+			erodeRow(backward, radius + 1, false, shifted);
+			for (int i = 0; i < words; i++) {
+				result[offset + i] = forward[i] & backward[i];
+			}
+			if (lastMask != -1L)
+				result[offset + words - 1] &= lastMask;
+		}
+		return result;
+	}
+
+	/**
+	 * row[x] becomes the AND of the pixels [x, x + window) if down, of the
+	 * pixels (x - window, x] otherwise. The windows of length 2^k are built by
+	 * doubling, the last one by joining two windows that overlap.
+	 */
+	private void erodeRow(long[] row, int window, boolean down, long[] shifted) {
+		int length = 1;
+		while (length * 2 <= window) {
+			shift(row, length, down, shifted);
+			for (int i = 0; i < words; i++) {
+				row[i] &= shifted[i];
+			}
+			length *= 2;
+		}
+		if (length < window) {
+			shift(row, window - length, down, shifted);
+			for (int i = 0; i < words; i++) {
+				row[i] &= shifted[i];
+			}
+		}
+	}
+
+	private void shift(long[] row, int n, boolean down, long[] shifted) {
+		if (down)
+			shiftDown(row, n, shifted);
+		else
+			shiftUp(row, n, shifted);
+	}
+
+	/**
+	 * shifted[x] = row[x + n], the pixels after the end of the row are
+	 * selected
+	 */
+	private void shiftDown(long[] row, int n, long[] shifted) {
+		// the pixels after the end of the row are neutral for the erosion
+		if (lastMask != -1L)
+			row[words - 1] |= ~lastMask;
+		int q = n >> 6;
+		int s = n & 63;
+		for (int i = 0; i < words; i++) {
+			long low = i + q < words ? row[i + q] : -1L;
+			if (s == 0) {
+				shifted[i] = low;
+			} else {
+				long high = i + q + 1 < words ? row[i + q + 1] : -1L;
+				shifted[i] = (low >>> s) | (high << (64 - s));
+			}
+		}
+	}
+
+	/**
+	 * shifted[x] = row[x - n], the pixels before the start of the row are
+	 * selected
+	 */
+	private void shiftUp(long[] row, int n, long[] shifted) {
+		int q = n >> 6;
+		int s = n & 63;
+		for (int i = 0; i < words; i++) {
+			long high = i - q >= 0 ? row[i - q] : -1L;
+			if (s == 0) {
+				shifted[i] = high;
+			} else {
+				long low = i - q - 1 >= 0 ? row[i - q - 1] : -1L;
+				shifted[i] = (high << s) | (low >>> (64 - s));
+			}
+		}
+	}
+
+	/**
+	 * van Herk / Gil-Werman along the columns, the packed rows are the
+	 * elements: the rows are split in blocks of 2 * radius + 1, g is the AND
+	 * from the start of the block and h the AND to the end of the block, the
+	 * window [y - radius, y + radius] is h[y - radius] & g[y + radius]. The
+	 * rows outside of the image are selected.
+	 */
+	private long[] erodeColumns(long[] packed, int radius) {
+		int size = 2 * radius + 1;
+		// the rows are indexed from -radius to height + radius
+		int rows = height + 2 * radius;
+		int blocks = (rows + size - 1) / size;
+		int total = blocks * size;
+		long[] g = new long[total * words];
+		long[] h = new long[total * words];
+		for (int j = 0; j < total; j++) {
+			int y = j - radius;
+			int offset = j * words;
+			boolean inside = y >= 0 && y < height;
+			if (j % size == 0) {
+				for (int i = 0; i < words; i++) {
+					g[offset + i] = inside ? packed[y * words + i] : -1L;
+				}
+			} else {
+				for (int i = 0; i < words; i++) {
+					long value = inside ? packed[y * words + i] : -1L;
+					g[offset + i] = g[offset - words + i] & value;
+				}
+			}
+		}
+		for (int j = total - 1; j >= 0; j--) {
+			int y = j - radius;
+			int offset = j * words;
+			boolean inside = y >= 0 && y < height;
+			if (j % size == size - 1) {
+				for (int i = 0; i < words; i++) {
+					h[offset + i] = inside ? packed[y * words + i] : -1L;
+				}
+			} else {
+				for (int i = 0; i < words; i++) {
+					long value = inside ? packed[y * words + i] : -1L;
+					h[offset + i] = h[offset + words + i] & value;
+				}
+			}
+		}
+		long[] result = new long[packed.length];
+		for (int y = 0; y < height; y++) {
+			// row y is at j = y + radius, its window is [j - radius, j + radius]
+			int start = y * words;
+			int end = (y + 2 * radius) * words;
+			int offset = y * words;
+			for (int i = 0; i < words; i++) {
+				result[offset + i] = h[start + i] & g[end + i];
+			}
+		}
+		return result;
+	}
+}
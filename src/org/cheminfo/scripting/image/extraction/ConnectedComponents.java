@@ -0,0 +1,233 @@
+package org.cheminfo.scripting.image.extraction;
+
+import java.awt.Rectangle;
+
+/**
+ * Labels the connected components of a binary image in two raster scans with
+ * a union-find of the provisional labels, the cost is linear in the number of
+ * pixels. The labels are numbered from 1 in the order in which the components
+ * are first met when scanning the rows from the top, 0 is the background. The
+ * bounding box, the area and the centroid of every component are collected
+ * during the second scan, which resolves the provisional labels.
+ */
+public class ConnectedComponents {
+	/**
+	 * Only the horizontal and vertical neighbours are connected
+	 */
+	public static final int FOUR = 4;
+	/**
+	 * The diagonal neighbours are connected too
+	 */
+	public static final int EIGHT = 8;
+
+	private final int width;
+	private final int height;
+	private final int connectivity;
+	private int[] labels;
+	private int count;
+	// statistics of the label l at index l, index 0 is not used
+	private int[] area;
+	private int[] minX;
+	private int[] minY;
+	private int[] maxX;
+	private int[] maxY;
+	private long[] sumX;
+	private long[] sumY;
+	private int[] first;
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param connectivity
+	 *            FOUR or EIGHT
+	 */
+	public ConnectedComponents(int width, int height, int connectivity) {
+		if (connectivity != FOUR && connectivity != EIGHT)
+			throw new IllegalArgumentException("Connectivity must be 4 or 8");
+		this.width = width;
+		this.height = height;
+		this.connectivity = connectivity;
+	}
+
+	/**
+	 * Labels the pixels of the mask that are not 0
+	 *
+	 * @param mask
+	 *            width*height pixels, row by row
+	 * @return the number of components
+	 */
+	public int label(byte[] mask) {
+		if (mask.length != width * height)
+			throw new IllegalArgumentException("The mask must have "
+					+ (width * height) + " pixels");
+		labels = new int[width * height];
+		// parent of every provisional label, a root is its own parent
+		int[] parent = new int[Math.max(width * height / 8, 16)];
+		int next = 1;
+
+		// first pass: provisional labels and their equivalences
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				int i = offset + x;
+				if (mask[i] == 0)
+					continue;
+				int label = 0;
+				if (x > 0)
+					label = merge(parent, label, labels[i - 1]);
+				if (y > 0) {
+					int up = i - width;
+					label = merge(parent, label, labels[up]);
+					if (connectivity == EIGHT) {
+						if (x > 0)
+							label = merge(parent, label, labels[up - 1]);
+						if (x < width - 1)
+							label = merge(parent, label, labels[up + 1]);
+					}
+				}
+				if (label == 0) {
+					if (next == parent.length) {
+						int[] larger = new int[parent.length * 2];
+						System.arraycopy(parent, 0, larger, 0, parent.length);
+						parent = larger;
+					}
+					parent[next] = next;
+					label = next++;
+				}
+				labels[i] = label;
+			}
+		}
+
+		// second pass: final label of every root, in the order of the first
+		// pixel, and the statistics. There are at most next - 1 components.
+		int[] finalLabel = new int[next];
+		area = new int[next];
+		minX = new int[next];
+		minY = new int[next];
+		maxX = new int[next];
+		maxY = new int[next];
+		sumX = new long[next];
+		sumY = new long[next];
+		first = new int[next];
+		count = 0;
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				int i = offset + x;
+				if (labels[i] == 0)
+					continue;
+				int root = find(parent, labels[i]);
+				int label = finalLabel[root];
+				if (label == 0) {
+					label = ++count;
+					finalLabel[root] = label;
+					first[label] = i;
+					minX[label] = x;
+					minY[label] = y;
+					maxX[label] = x;
+				}
+				labels[i] = label;
+				area[label]++;
+				sumX[label] += x;
+				sumY[label] += y;
+				if (x < minX[label])
+					minX[label] = x;
+				if (x > maxX[label])
+					maxX[label] = x;
+				maxY[label] = y;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the label of the pixel after joining the sets of label and
+	 *         other, one of them may be 0
+	 */
+	private static int merge(int[] parent, int label, int other) {
+		if (other == 0)
+			return label;
+		int root = find(parent, other);
+		if (label == 0)
+			return root;
+		int labelRoot = find(parent, label);
+		if (labelRoot < root) {
+			parent[root] = labelRoot;
+			return labelRoot;
+		}
+		parent[labelRoot] = root;
+		return root;
+	}
+
+	private static int find(int[] parent, int label) {
+		while (parent[label] != label) {
+			// path halving
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	/**
+	 * @return the label of every pixel, row by row
+	 */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return the number of components
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @param label
+	 *            between 1 and getCount()
+	 * @return the number of pixels of the component
+	 */
+	public int getArea(int label) {
+		return area[label];
+	}
+
+	/**
+	 * @param label
+	 *            between 1 and getCount()
+	 * @return the smallest rectangle that contains the component
+	 */
+	public Rectangle getBounds(int label) {
+		return new Rectangle(minX[label], minY[label], maxX[label]
+				- minX[label] + 1, maxY[label] - minY[label] + 1);
+	}
+
+	/**
+	 * @param label
+	 *            between 1 and getCount()
+	 * @return the index of the first pixel of the component in raster order,
+	 *         its top left pixel
+	 */
+	public int getFirstPixel(int label) {
+		return first[label];
+	}
+
+	public int getConnectivity() {
+		return connectivity;
+	}
+
+	public double getCentroidX(int label) {
+		return (double) sumX[label] / area[label];
+	}
+
+	public double getCentroidY(int label) {
+		return (double) sumY[label] / area[label];
+	}
+}
@@ -0,0 +1,162 @@
+package org.cheminfo.scripting.image.extraction;
+
+import org.cheminfo.scripting.image.filters.BandExecutor;
+
+/**
+ * Exact Euclidean distance transform of a binary mask: for every selected
+ * pixel the distance to the nearest pixel that is not selected. The squared
+ * distance is separable: along the columns it is the distance to the nearest
+ * background pixel of the column, along the rows it is the lower envelope of
+ * parabolas of Felzenszwalb and Huttenlocher, in a time linear in the number
+ * of pixels. The columns and then the rows are processed in parallel.
+ *
+ * The outside of the image is not background, an object that touches the
+ * border is not cut by it.
+ */
+public class DistanceTransform {
+	private final int width;
+	private final int height;
+	// squared distance of the pixels that have no background at all
+	private final int infinity;
+	private BandExecutor executor = BandExecutor.getShared();
+
+	/**
+	 * @param width
+	 * @param height
+	 */
+	public DistanceTransform(int width, int height) {
+		this.width = width;
+		this.height = height;
+		long max = (long) (width + height) * (width + height);
+		this.infinity = (int) Math.min(max, Integer.MAX_VALUE / 2);
+	}
+
+	public void setExecutor(BandExecutor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the squared distance of the pixels when there is no background
+	 *         in the mask
+	 */
+	public int getInfinity() {
+		return infinity;
+	}
+
+	/**
+	 * @param mask
+	 *            width*height pixels, the ones that are not 0 are selected
+	 * @return the squared distance of every pixel to the nearest background
+	 *         pixel, 0 for the background
+	 */
+	public int[] squaredDistances(final byte[] mask) {
+		if (mask.length != width * height)
+			throw new IllegalArgumentException("The mask must have "
+					+ (width * height) + " pixels");
+		final int[] distances = new int[width * height];
+		// along the columns, the distance to the nearest background pixel of
+		// the column. For a binary mask it only needs a sweep down and a
+		// sweep up, done row by row for the cache.
+		executor.execute(width, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				for (int x = start; x < end; x++) {
+					distances[x] = mask[x] == 0 ? 0 : height;
+				}
+				for (int y = 1; y < height; y++) {
+					int offset = y * width;
+					for (int x = start; x < end; x++) {
+						int i = offset + x;
+						distances[i] = mask[i] == 0 ? 0 : distances[i - width] + 1;
+					}
+				}
+				for (int y = height - 2; y >= 0; y--) {
+					int offset = y * width;
+					for (int x = start; x < end; x++) {
+						int i = offset + x;
+						int below = distances[i + width] + 1;
+						if (below < distances[i])
+							distances[i] = below;
+					}
+				}
+				// squared, the columns without background are at infinity
+				for (int y = 0; y < height; y++) {
+					int offset = y * width;
+					for (int x = start; x < end; x++) {
+						int i = offset + x;
+						int d = distances[i];
+						distances[i] = d >= height ? infinity : d * d;
+					}
+				}
+			}
+		});
+		// along the rows, with the distances of the columns
+		executor.execute(height, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				int[] f = new int[width];
+				int[] d = new int[width];
+				int[] v = new int[width];
+				double[] z = new double[width + 1];
+				for (int y = start; y < end; y++) {
+					System.arraycopy(distances, y * width, f, 0, width);
+					envelope(f, width, d, v, z);
+					for (int x = 0; x < width; x++) {
+						distances[y * width + x] = Math.min(d[x], infinity);
+					}
+				}
+			}
+		});
+		return distances;
+	}
+
+	/**
+	 * @param mask
+	 * @return the distance of every pixel to the nearest background pixel
+	 */
+	public float[] distances(byte[] mask) {
+		int[] squared = squaredDistances(mask);
+		float[] distances = new float[squared.length];
+		for (int i = 0; i < squared.length; i++) {
+			distances[i] = (float) Math.sqrt(squared[i]);
+		}
+		return distances;
+	}
+
+	/**
+	 * d[q] = min over p of (q - p)^2 + f[p], the minimum is on the lower
+	 * envelope of the parabolas rooted at every p. v holds the roots of the
+	 * parabolas of the envelope and z the boundaries between them.
+	 */
+	private static void envelope(int[] f, int n, int[] d, int[] v, double[] z) {
+		int k = 0;
+		v[0] = 0;
+		z[0] = Double.NEGATIVE_INFINITY;
+		z[1] = Double.POSITIVE_INFINITY;
+		for (int q = 1; q < n; q++) {
+			double s = intersection(f, q, v[k]);
+			while (s <= z[k]) {
+				k--;
+				s = intersection(f, q, v[k]);
+			}
+			k++;
+			v[k] = q;
+			z[k] = s;
+			z[k + 1] = Double.POSITIVE_INFINITY;
+		}
+		k = 0;
+		for (int q = 0; q < n; q++) {
+			while (z[k + 1] < q) {
+				k++;
+			}
+			long dq = q - v[k];
+			d[q] = (int) Math.min(dq * dq + f[v[k]], Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * @return the abscissa where the parabolas rooted at q and p cross
+	 */
+	private static double intersection(int[] f, int q, int p) {
+		return ((f[q] + (double) q * q) - (f[p] + (double) p * p))
+				/ (2.0 * q - 2.0 * p);
+	}
+}
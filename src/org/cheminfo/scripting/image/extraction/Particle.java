@@ -0,0 +1,81 @@
+package org.cheminfo.scripting.image.extraction;
+
+import ij.gui.Roi;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+
+/**
+ * A connected group of pixels of a mask with the measurements taken while it
+ * was found
+ */
+public class Particle {
+	private final Roi roi;
+	private final Polygon polygon;
+	private final Rectangle bounds;
+	private final int area;
+	private final int pixelCount;
+	private final double perimeter;
+	private final double centroidX;
+	private final double centroidY;
+
+	Particle(Roi roi, Polygon polygon, Rectangle bounds, int area,
+			int pixelCount, double perimeter, double centroidX,
+			double centroidY) {
+		this.roi = roi;
+		this.polygon = polygon;
+		this.bounds = bounds;
+		this.area = area;
+		this.pixelCount = pixelCount;
+		this.perimeter = perimeter;
+		this.centroidX = centroidX;
+		this.centroidY = centroidY;
+	}
+
+	/**
+	 * @return the outer contour, its vertices are on the corners of the pixels
+	 */
+	public Polygon getPolygon() {
+		return polygon;
+	}
+
+	/**
+	 * @return a traced polygon roi of the outer contour
+	 */
+	public Roi getRoi() {
+		return roi;
+	}
+
+	public Rectangle getBounds() {
+		return new Rectangle(bounds);
+	}
+
+	/**
+	 * @return the number of pixels inside the outer contour, holes included
+	 */
+	public int getArea() {
+		return area;
+	}
+
+	/**
+	 * @return the number of pixels of the particle itself
+	 */
+	public int getPixelCount() {
+		return pixelCount;
+	}
+
+	/**
+	 * @return the length of the outer contour, as measured by the roi
+	 */
+	public double getPerimeter() {
+		return perimeter;
+	}
+
+	public double getCentroidX() {
+		return centroidX;
+	}
+
+	public double getCentroidY() {
+		return centroidY;
+	}
+}
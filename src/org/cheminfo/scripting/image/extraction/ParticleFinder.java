@@ -0,0 +1,177 @@
+package org.cheminfo.scripting.image.extraction;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+
+/**
+ * Finds the particles of a mask directly on the raster: the pixels are
+ * labelled with ConnectedComponents and the outer contour of every label is
+ * followed along the edges of its pixels, starting from its top left pixel.
+ * The whole mask is scanned twice for the labels and every contour once, the
+ * measurements come from the labelling and the tracing.
+ */
+public class ParticleFinder {
+	// directions of the contour, clockwise
+	private static final int RIGHT = 0;
+	private static final int DOWN = 1;
+	private static final int LEFT = 2;
+	private static final int UP = 3;
+	private static final int[] DX = { 1, 0, -1, 0 };
+	private static final int[] DY = { 0, 1, 0, -1 };
+
+	private int connectivity = ConnectedComponents.EIGHT;
+
+	/**
+	 * Finds the particles made of the pixels of a thresholded image whose
+	 * value is between its min and max thresholds, like ThresholdToSelection,
+	 * or of the pixels that are not 0 if the image has no threshold, where
+	 * ThresholdToSelection finds nothing
+	 *
+	 * @param mask
+	 * @return the particles in the order of their top left pixel
+	 */
+	public Particle[] find(ImageProcessor mask) {
+		return find(BinaryMorphology.select(mask), mask.getWidth(),
+				mask.getHeight());
+	}
+
+	/**
+	 * @param mask
+	 *            width*height pixels, the ones that are not 0 are selected
+	 * @param width
+	 * @param height
+	 * @return the particles in the order of their top left pixel
+	 */
+	public Particle[] find(byte[] mask, int width, int height) {
+		ConnectedComponents components = new ConnectedComponents(width,
+				height, connectivity);
+		int count = components.label(mask);
+		int[] labels = components.getLabels();
+		Particle[] particles = new Particle[count];
+		for (int label = 1; label <= count; label++) {
+			particles[label - 1] = trace(components, labels, label);
+		}
+		return particles;
+	}
+
+	/**
+	 * Follows the outer contour of a label with the inside on the right. At
+	 * every vertex the two pixels ahead decide if the contour goes straight,
+	 * turns left or turns right. The pixels that only touch by a corner are
+	 * part of the same contour with 8-connectivity.
+	 */
+	private Particle trace(ConnectedComponents components, int[] labels,
+			int label) {
+		int width = components.getWidth();
+		int height = components.getHeight();
+		boolean eight = connectivity == ConnectedComponents.EIGHT;
+		int start = components.getFirstPixel(label);
+		int startX = start % width;
+		int startY = start / width;
+
+		int[] xpoints = new int[16];
+		int[] ypoints = new int[16];
+		xpoints[0] = startX;
+		ypoints[0] = startY;
+		int npoints = 1;
+		long doubleArea = 0;
+
+		int x = startX;
+		int y = startY;
+		int direction = RIGHT;
+		do {
+			x += DX[direction];
+			y += DY[direction];
+			// pixels ahead on the left and on the right of the direction
+			int leftX, leftY, rightX, rightY;
+			switch (direction) {
+			case RIGHT:
+				leftX = x;
+				leftY = y - 1;
+				rightX = x;
+				rightY = y;
+				break;
+			case DOWN:
+				leftX = x;
+				leftY = y;
+				rightX = x - 1;
+				rightY = y;
+				break;
+			case LEFT:
+				leftX = x - 1;
+				leftY = y;
+				rightX = x - 1;
+				rightY = y - 1;
+				break;
+			default:
+				leftX = x - 1;
+				leftY = y - 1;
+				rightX = x;
+				rightY = y - 1;
+				break;
+			}
+			boolean left = leftX >= 0 && leftY >= 0 && leftX < width
+					&& leftY < height && labels[leftY * width + leftX] == label;
+			boolean right = rightX >= 0 && rightY >= 0 && rightX < width
+					&& rightY < height
+					&& labels[rightY * width + rightX] == label;
+			int next;
+			if (right) {
+				next = left ? (direction + 3) & 3 : direction;
+			} else {
+				next = left && eight ? (direction + 3) & 3
+						: (direction + 1) & 3;
+			}
+			if (next != direction && (x != startX || y != startY)) {
+				if (npoints == xpoints.length) {
+					int[] larger = new int[npoints * 2];
+					System.arraycopy(xpoints, 0, larger, 0, npoints);
+					xpoints = larger;
+					larger = new int[npoints * 2];
+					System.arraycopy(ypoints, 0, larger, 0, npoints);
+					ypoints = larger;
+				}
+				xpoints[npoints] = x;
+				ypoints[npoints] = y;
+				doubleArea += (long) xpoints[npoints - 1] * y - (long) x
+						* ypoints[npoints - 1];
+				npoints++;
+			}
+			direction = next;
+		} while (x != startX || y != startY);
+		// closing edge
+		doubleArea += (long) xpoints[npoints - 1] * startY - (long) startX
+				* ypoints[npoints - 1];
+
+		int[] xs = new int[npoints];
+		int[] ys = new int[npoints];
+		System.arraycopy(xpoints, 0, xs, 0, npoints);
+		System.arraycopy(ypoints, 0, ys, 0, npoints);
+		Polygon polygon = new Polygon(xs, ys, npoints);
+		// a traced roi measures its length with the corner correction of
+		// ImageJ, like the rois of the wand and of the particle analyzer. It
+		// moves the points it is given relative to its bounds, it gets copies
+		Roi roi = new PolygonRoi(xs.clone(), ys.clone(), npoints,
+				Roi.TRACED_ROI);
+		return new Particle(roi, polygon,
+				components.getBounds(label), (int) (Math.abs(doubleArea) / 2),
+				components.getArea(label), roi.getLength(),
+				components.getCentroidX(label), components.getCentroidY(label));
+	}
+
+	public int getConnectivity() {
+		return connectivity;
+	}
+
+	/**
+	 * @param connectivity
+	 *            ConnectedComponents.EIGHT (default, like the particle
+	 *            analyzer of ImageJ) or ConnectedComponents.FOUR
+	 */
+	public void setConnectivity(int connectivity) {
+		this.connectivity = connectivity;
+	}
+}
@@ -4,6 +4,7 @@ import ij.ImagePlus;
 import ij.plugin.filter.RankFilters;
 import ij.process.ImageProcessor;
 
+import java.awt.Rectangle;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
@@ -14,104 +15,28 @@ public class PillExtraction {
 
 	int nc;
 	int nr;
-	ImageProcessor ipm[][];
-	int mObjects[][];
-	float[][] pixels;
+	// labels of the objects, row by row
+	int mObjects[];
+	// 1 for the pixels of the objects, 0 for the background
+	byte[] mask;
+	private int connectivity = ConnectedComponents.EIGHT;
+	private boolean maskObjects = false;
 
 	private List<ImageObject> extractObjects2(ImagePlus iip) {
 		nc = iip.getWidth();
 		nr = iip.getHeight();
 
-		ipm = new ImageProcessor[nc][nr];
-		mObjects = new int[nc][nr];
 		List<ImageObject> objects = new Vector<ImageObject>();
-		Vector<Coordinates> toAnalyze = new Vector<Coordinates>();
-
-		int nObject = 0;
-
-		// loading patches of the generated image (with black background)
-		for (int i = 0, y = 0; i < iip.getHeight(); i++, y++) {
-			for (int j = 0, x = 0; j < iip.getWidth(); j++, x++) {
-				if (pixels[j][i] == 255) { // it is not black
-					mObjects[x][y] = -1;
-				} else {
-					mObjects[x][y] = 0;
-				}
-			}
-		}
 
 		// finding objects
-		for (int n = 1; n < nr - 1; n++) {
-			for (int m = 1; m < nc - 1; m++) {
-				if (mObjects[m][n] == -1) {
-					nObject++;
-					int x = m;
-					int y = n;
-					toAnalyze.add(new Coordinates(x, y));
-					mObjects[x][y] = nObject;
-
-					while (toAnalyze.size() > 0) {
-						int j = toAnalyze.get(0).getX();
-						int i = toAnalyze.get(0).getY();
-
-						if (mObjects[j - 1][i] == -1) {
-							x = j - 1;
-							y = i;
-							toAnalyze.add(new Coordinates(x, y));
-							mObjects[x][y] = nObject;
-						}
-						if (mObjects[j + 1][i] == -1) {
-							x = j + 1;
-							y = i;
-							toAnalyze.add(new Coordinates(x, y));
-							mObjects[x][y] = nObject;
-						}
-						if (mObjects[j - 1][i - 1] == -1) {
-							x = j - 1;
-							y = i - 1;
-							toAnalyze.add(new Coordinates(x, y));
-							mObjects[x][y] = nObject;
-						}
-						if (mObjects[j][i - 1] == -1) {
-							x = j;
-							y = i - 1;
-							toAnalyze.add(new Coordinates(x, y));
-							mObjects[x][y] = nObject;
-						}
-						if (mObjects[j + 1][i - 1] == -1) {
-							x = j + 1;
-							y = i - 1;
-							toAnalyze.add(new Coordinates(x, y));
-							mObjects[x][y] = nObject;
-						}
-						if (mObjects[j - 1][i + 1] == -1) {
-							x = j - 1;
-							y = i + 1;
-							toAnalyze.add(new Coordinates(x, y));
-							mObjects[x][y] = nObject;
-						}
-						if (mObjects[j][i + 1] == -1) {
-							x = j;
-							y = i + 1;
-							toAnalyze.add(new Coordinates(x, y));
-							mObjects[x][y] = nObject;
-						}
-						if (mObjects[j + 1][i + 1] == -1) {
-							x = j + 1;
-							y = i + 1;
-							toAnalyze.add(new Coordinates(x, y));
-							mObjects[x][y] = nObject;
-						}
-
-						toAnalyze.remove(0);
-					}
-					// printObjects();
-				}
-			}
-		}
+		ConnectedComponents components = new ConnectedComponents(nc, nr,
+				connectivity);
+		int nObject = components.label(mask);
+		mObjects = components.getLabels();
 
+		// the bounding boxes were collected while labelling
 		for (int i = 1; i <= nObject; i++) {
-			ImagePlus o = cropObject2(iip, i);
+			ImagePlus o = cropObject2(iip, components.getBounds(i), i);
 			objects.add(new ImageObject(o));
 		}
 
@@ -127,19 +52,26 @@ public class PillExtraction {
 		ImageProcessor ipo = out.getProcessor();
 		ip.autoThreshold();
 
+		// the masks of getRois and split are cleaned by the script with
+		// EIJ.open, fillHoles and removeSmallObjects, and their touching
+		// objects separated with EIJ.watershed, instead
 		RankFilters rf = new RankFilters();
 		rf.rank(ip, 50.0, RankFilters.OUTLIERS);
 
-		pixels = ip.getFloatArray();
+		float[][] pixels = ip.getFloatArray();
 
 		int width = imp.getWidth();
 		int height = imp.getHeight();
+		mask = new byte[width * height];
 
 		for (int i = 0; i < height; i++) {
 			for (int j = 0; j < width; j++) {
 				if (pixels[j][i] == 0) {
 					ipo.putPixelValue(j, i, 0);
 				}
+				if (pixels[j][i] == 255) { // it is not black
+					mask[i * width + j] = 1;
+				}
 			}
 		}
 		out.setTitle(imp.getTitle());
@@ -147,72 +79,53 @@ public class PillExtraction {
 		return out;
 	}
 
-	private ImagePlus cropObject2(ImagePlus iip, int nObject) {
+	/**
+	 * Crops the bounding box of an object. If maskObjects is set the pixels
+	 * that belong to other objects or to the background are cleared.
+	 */
+	private ImagePlus cropObject2(ImagePlus iip, Rectangle bounds, int nObject) {
 		ImageProcessor ip = iip.getProcessor();
-		int xs = 0, ys = 0;
-		nc = iip.getWidth();
-		nr = iip.getHeight();
-		int xe = nc;
-		int ye = nr;
-
-		boolean ends = false;
-
-		// left
-		for (int j = 0; j < nc && !ends; j++) {
-			for (int i = 0; i < nr && !ends; i++) {
-				if (mObjects[j][i] == nObject) {
-					xs = j;
-					ends = true;
-				}
-			}
-		}
-
-		ends = false;
-
-		// right
-		for (int j = nc - 1; j > 0 && !ends; j--) {
-			for (int i = 0; i < nr && !ends; i++) {
-				if (mObjects[j][i] == nObject) {
-					xe = j;
-					ends = true;
-				}
-			}
-		}
+		ip.setRoi(bounds);
 
-		ends = false;
-
-		// top
-		for (int i = 0; i < nc && !ends; i++) {
-			for (int j = 0; j < nc && !ends; j++) {
-				if (mObjects[j][i] == nObject) {
-					ys = i;
-					ends = true;
+		ImageProcessor oip = ip.crop();
+		if (maskObjects) {
+			for (int y = 0; y < bounds.height; y++) {
+				int offset = (bounds.y + y) * nc + bounds.x;
+				for (int x = 0; x < bounds.width; x++) {
+					if (mObjects[offset + x] != nObject)
+						oip.putPixel(x, y, 0);
 				}
 			}
 		}
+		String title = iip.getTitle() + " (object)";
+		ImagePlus o = new ImagePlus(title, oip);
 
-		ends = false;
-
-		// down
-		for (int i = nr - 1; i > 0 && !ends; i--) {
-			for (int j = 0; j < nc && !ends; j++) {
-				if (mObjects[j][i] == nObject) {
-					ye = i;
-					ends = true;
-				}
-			}
-		}
+		return o;
+	}
 
-		int width = (xe - xs + 1);
-		int height = (ye - ys + 1);
+	public int getConnectivity() {
+		return connectivity;
+	}
 
-		ip.setRoi(xs, ys, width, height);
+	/**
+	 * @param connectivity
+	 *            ConnectedComponents.FOUR or ConnectedComponents.EIGHT
+	 */
+	public void setConnectivity(int connectivity) {
+		this.connectivity = connectivity;
+	}
 
-		ImageProcessor oip = ip.crop();
-		String title = iip.getTitle() + " (object)";
-		ImagePlus o = new ImagePlus(title, oip);
+	public boolean isMaskObjects() {
+		return maskObjects;
+	}
 
-		return o;
+	/**
+	 * @param maskObjects
+	 *            if true only the pixels of the object are kept in its image,
+	 *            the rest of its bounding box is black
+	 */
+	public void setMaskObjects(boolean maskObjects) {
+		this.maskObjects = maskObjects;
 	}
 
 	public EIJ[] extract2(EIJ imp) {
@@ -0,0 +1,379 @@
+package org.cheminfo.scripting.image.extraction;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * A binary mask stored as the runs of selected pixels of every row. A run is
+ * the pair [start, end) of the columns of consecutive selected pixels, the
+ * runs of a row are sorted and separated by at least one pixel. The runs of
+ * the row y are between rowStart[y] and rowStart[y + 1] in runs, 2 ints per
+ * run.
+ *
+ * The memory used depends on the number of runs and not on the number of
+ * pixels, and the union, the intersection and the difference of two masks
+ * only go through their runs.
+ */
+public class RunLengthMask {
+	private final int width;
+	private final int height;
+	private final int[] rowStart;
+	private final int[] runs;
+
+	private RunLengthMask(int width, int height, int[] rowStart, int[] runs) {
+		this.width = width;
+		this.height = height;
+		this.rowStart = rowStart;
+		this.runs = runs;
+	}
+
+	/**
+	 * The runs are added row by row, from the left to the right
+	 */
+	private static class Builder {
+		final int width;
+		final int height;
+		final int[] rowStart;
+		int[] runs = new int[64];
+		int length = 0;
+		int row = 0;
+
+		Builder(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.rowStart = new int[height + 1];
+		}
+
+		void add(int start, int end) {
+			if (start >= end)
+				return;
+			// joins the runs that touch
+			if (length > rowStart[row] && runs[length - 1] == start) {
+				runs[length - 1] = end;
+				return;
+			}
+			if (length + 2 > runs.length) {
+				int[] larger = new int[runs.length * 2];
+				System.arraycopy(runs, 0, larger, 0, length);
+				runs = larger;
+			}
+			runs[length++] = start;
+			runs[length++] = end;
+		}
+
+		void endRow() {
+			rowStart[++row] = length;
+		}
+
+		RunLengthMask build() {
+			int[] trimmed = new int[length];
+			System.arraycopy(runs, 0, trimmed, 0, length);
+			return new RunLengthMask(width, height, rowStart, trimmed);
+		}
+	}
+
+	/**
+	 * Thresholds an image: the selected pixels are the ones between the
+	 * thresholds, or the ones that are not 0 (not black for an RGB image) when
+	 * the image has no threshold
+	 *
+	 * @param ip
+	 * @return the mask of the selected pixels
+	 */
+	public static RunLengthMask fromProcessor(ImageProcessor ip) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		boolean thresholded = ip.getMinThreshold() != ImageProcessor.NO_THRESHOLD;
+		float min = thresholded ? (float) ip.getMinThreshold() : 0;
+		float max = thresholded ? (float) ip.getMaxThreshold() : 0;
+		Object pixels = ip.getPixels();
+		byte[] bytes = pixels instanceof byte[] ? (byte[]) pixels : null;
+		// the RGB images have no threshold, their black pixels are not selected
+		int[] colors = pixels instanceof int[] && !thresholded ? (int[]) pixels
+				: null;
+		Builder builder = new Builder(width, height);
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			int start = -1;
+			for (int x = 0; x < width; x++) {
+				boolean selected;
+				if (bytes != null) {
+					int value = bytes[offset + x] & 0xff;
+					selected = thresholded ? value >= min && value <= max
+							: value != 0;
+				} else if (colors != null) {
+					selected = (colors[offset + x] & 0xffffff) != 0;
+				} else {
+					float value = ip.getf(x, y);
+					selected = thresholded ? value >= min && value <= max
+							: value != 0;
+				}
+				if (selected && start < 0) {
+					start = x;
+				} else if (!selected && start >= 0) {
+					builder.add(start, x);
+					start = -1;
+				}
+			}
+			if (start >= 0)
+				builder.add(start, width);
+			builder.endRow();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @param mask
+	 *            width*height pixels, the ones that are not 0 are selected
+	 * @param width
+	 * @param height
+	 */
+	public static RunLengthMask fromBytes(byte[] mask, int width, int height) {
+		if (mask.length != width * height)
+			throw new IllegalArgumentException("The mask must have "
+					+ (width * height) + " pixels");
+		Builder builder = new Builder(width, height);
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			int x = 0;
+			while (x < width) {
+				while (x < width && mask[offset + x] == 0)
+					x++;
+				int start = x;
+				while (x < width && mask[offset + x] != 0)
+					x++;
+				builder.add(start, x);
+			}
+			builder.endRow();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @return width*height pixels, 1 for the selected ones
+	 */
+	public byte[] toBytes() {
+		byte[] mask = new byte[width * height];
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			for (int run = rowStart[y]; run < rowStart[y + 1]; run += 2) {
+				for (int x = runs[run]; x < runs[run + 1]; x++) {
+					mask[offset + x] = 1;
+				}
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * @return a mask image whose selected pixels are 255 and thresholded
+	 *         between 255 and 255
+	 */
+	public ByteProcessor toProcessor() {
+		byte[] pixels = toBytes();
+		for (int i = 0; i < pixels.length; i++) {
+			if (pixels[i] != 0)
+				pixels[i] = (byte) 255;
+		}
+		ByteProcessor ip = new ByteProcessor(width, height, pixels, null);
+		ip.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		return ip;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getRunCount() {
+		return runs.length / 2;
+	}
+
+	/**
+	 * @param y
+	 * @return the index of the first run of the row
+	 */
+	public int getFirstRun(int y) {
+		return rowStart[y] / 2;
+	}
+
+	/**
+	 * @param y
+	 * @return the index after the last run of the row
+	 */
+	public int getEndRun(int y) {
+		return rowStart[y + 1] / 2;
+	}
+
+	/**
+	 * @param run
+	 * @return the first column of the run
+	 */
+	public int getRunStart(int run) {
+		return runs[2 * run];
+	}
+
+	/**
+	 * @param run
+	 * @return the column after the last one of the run
+	 */
+	public int getRunEnd(int run) {
+		return runs[2 * run + 1];
+	}
+
+	/**
+	 * @return the number of selected pixels
+	 */
+	public int getArea() {
+		int area = 0;
+		for (int run = 0; run < runs.length; run += 2) {
+			area += runs[run + 1] - runs[run];
+		}
+		return area;
+	}
+
+	/**
+	 * @return the smallest rectangle that contains the selected pixels, an
+	 *         empty rectangle if there are none
+	 */
+	public Rectangle getBounds() {
+		int minX = width, maxX = -1, minY = -1, maxY = -1;
+		for (int y = 0; y < height; y++) {
+			int first = rowStart[y];
+			int end = rowStart[y + 1];
+			if (first == end)
+				continue;
+			if (minY < 0)
+				minY = y;
+			maxY = y;
+			if (runs[first] < minX)
+				minX = runs[first];
+			if (runs[end - 1] - 1 > maxX)
+				maxX = runs[end - 1] - 1;
+		}
+		if (minY < 0)
+			return new Rectangle(0, 0, 0, 0);
+		return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+
+	/**
+	 * @return true if the pixel is selected
+	 */
+	public boolean contains(int x, int y) {
+		if (y < 0 || y >= height)
+			return false;
+		// binary search of the last run that starts at or before x
+		int low = rowStart[y] / 2;
+		int high = rowStart[y + 1] / 2 - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (runs[2 * middle] <= x)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return high >= rowStart[y] / 2 && x < runs[2 * high + 1];
+	}
+
+	/**
+	 * @return the pixels selected in this mask or in the other one
+	 */
+	public RunLengthMask union(RunLengthMask other) {
+		checkSize(other);
+		Builder builder = new Builder(width, height);
+		for (int y = 0; y < height; y++) {
+			int a = rowStart[y], aEnd = rowStart[y + 1];
+			int b = other.rowStart[y], bEnd = other.rowStart[y + 1];
+			int start = -1, end = -1;
+			while (a < aEnd || b < bEnd) {
+				// the run that starts first
+				int runStart, runEnd;
+				if (b >= bEnd || (a < aEnd && runs[a] <= other.runs[b])) {
+					runStart = runs[a];
+					runEnd = runs[a + 1];
+					a += 2;
+				} else {
+					runStart = other.runs[b];
+					runEnd = other.runs[b + 1];
+					b += 2;
+				}
+				if (start >= 0 && runStart <= end) {
+					if (runEnd > end)
+						end = runEnd;
+				} else {
+					if (start >= 0)
+						builder.add(start, end);
+					start = runStart;
+					end = runEnd;
+				}
+			}
+			if (start >= 0)
+				builder.add(start, end);
+			builder.endRow();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @return the pixels selected in both masks
+	 */
+	public RunLengthMask intersection(RunLengthMask other) {
+		checkSize(other);
+		Builder builder = new Builder(width, height);
+		for (int y = 0; y < height; y++) {
+			int a = rowStart[y], aEnd = rowStart[y + 1];
+			int b = other.rowStart[y], bEnd = other.rowStart[y + 1];
+			while (a < aEnd && b < bEnd) {
+				int start = Math.max(runs[a], other.runs[b]);
+				int end = Math.min(runs[a + 1], other.runs[b + 1]);
+				builder.add(start, end);
+				// the run that ends first can not overlap the next ones
+				if (runs[a + 1] < other.runs[b + 1])
+					a += 2;
+				else
+					b += 2;
+			}
+			builder.endRow();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @return the pixels selected in this mask and not in the other one
+	 */
+	public RunLengthMask difference(RunLengthMask other) {
+		checkSize(other);
+		Builder builder = new Builder(width, height);
+		for (int y = 0; y < height; y++) {
+			int b = other.rowStart[y], bEnd = other.rowStart[y + 1];
+			for (int a = rowStart[y]; a < rowStart[y + 1]; a += 2) {
+				int start = runs[a];
+				int end = runs[a + 1];
+				// the runs of the other mask that end before this one starts
+				// can not remove anything from the next runs either
+				while (b < bEnd && other.runs[b + 1] <= start)
+					b += 2;
+				int c = b;
+				while (c < bEnd && other.runs[c] < end) {
+					builder.add(start, other.runs[c]);
+					start = Math.max(start, other.runs[c + 1]);
+					c += 2;
+				}
+				builder.add(start, end);
+			}
+			builder.endRow();
+		}
+		return builder.build();
+	}
+
+	private void checkSize(RunLengthMask other) {
+		if (other.width != width || other.height != height)
+			throw new IllegalArgumentException(
+					"The masks must have the same size");
+	}
+}
@@ -0,0 +1,197 @@
+package org.cheminfo.scripting.image.extraction;
+
+import java.util.Arrays;
+
+/**
+ * Separates the touching objects of a binary mask along the lines where their
+ * distance transforms meet. The pixels are flooded from the highest distance
+ * to the lowest: a pixel joins the basin of its flooded neighbours, starts a
+ * new basin if it has none, and becomes a line of the watershed if it touches
+ * two basins. The squared distances are integers, so the pixels are ordered
+ * by a radix sort and the whole flooding is linear in the number of pixels.
+ *
+ * Two basins that meet are merged when the peak of one of them is less than
+ * the tolerance above the level where they meet, like the tolerance of the
+ * maxima of the watershed of ImageJ. It also merges the basins that start on
+ * the same plateau.
+ */
+public class Watershed {
+	// the labels of the pixels while flooding
+	private static final int UNSEEN = 0;
+	private static final int LINE = -1;
+	private static final int[] DX = { -1, 0, 1, -1, 1, -1, 0, 1 };
+	private static final int[] DY = { -1, -1, -1, 0, 0, 1, 1, 1 };
+
+	private final int width;
+	private final int height;
+	private double tolerance = 0.5;
+	private DistanceTransform transform;
+
+	/**
+	 * @param width
+	 * @param height
+	 */
+	public Watershed(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.transform = new DistanceTransform(width, height);
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @param tolerance
+	 *            in pixels, a maximum of the distance transform that is less
+	 *            than the tolerance above the saddle to a higher maximum does
+	 *            not make an object. 0.5 by default.
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @param mask
+	 *            width*height pixels, the ones that are not 0 are selected
+	 * @return the mask where the lines that separate the objects are cleared,
+	 *         the objects are not connected to each other, even by their
+	 *         corners
+	 */
+	public byte[] split(byte[] mask) {
+		int[] squared = transform.squaredDistances(mask);
+		int size = width * height;
+		byte[] result = new byte[size];
+
+		int max = 0;
+		for (int i = 0; i < size; i++) {
+			if (squared[i] > max)
+				max = squared[i];
+		}
+		if (max == 0 || max == transform.getInfinity()) {
+			// no object, or no background to measure the distances from
+			for (int i = 0; i < size; i++) {
+				result[i] = (byte) (mask[i] == 0 ? 0 : 1);
+			}
+			return result;
+		}
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (squared[i] > 0)
+				count++;
+		}
+		int[] order = new int[count];
+		count = 0;
+		for (int i = 0; i < size; i++) {
+			if (squared[i] > 0)
+				order[count++] = i;
+		}
+		order = sortByDecreasingDistance(order, squared, max);
+
+		// basins, merged with a union-find
+		int[] labels = new int[size];
+		int[] parent = new int[64];
+		float[] peak = new float[64];
+		int basins = 0;
+		int[] roots = new int[8];
+		for (int n = 0; n < count; n++) {
+			int i = order[n];
+			int x = i % width;
+			int y = i / width;
+			float level = (float) Math.sqrt(squared[i]);
+			int found = 0;
+			for (int k = 0; k < 8; k++) {
+				int nx = x + DX[k];
+				int ny = y + DY[k];
+				if (nx < 0 || ny < 0 || nx >= width || ny >= height)
+					continue;
+				int label = labels[ny * width + nx];
+				if (label == UNSEEN || label == LINE)
+					continue;
+				int root = find(parent, label);
+				boolean known = false;
+				for (int r = 0; r < found; r++) {
+					if (roots[r] == root)
+						known = true;
+				}
+				if (!known)
+					roots[found++] = root;
+			}
+			if (found == 0) {
+				basins++;
+				if (basins == parent.length) {
+					int[] largerParent = new int[basins * 2];
+					System.arraycopy(parent, 0, largerParent, 0, basins);
+					parent = largerParent;
+					float[] largerPeak = new float[basins * 2];
+					System.arraycopy(peak, 0, largerPeak, 0, basins);
+					peak = largerPeak;
+				}
+				parent[basins] = basins;
+				peak[basins] = level;
+				labels[i] = basins;
+				continue;
+			}
+			// the highest basin absorbs the ones that are not deep enough
+			int highest = roots[0];
+			for (int r = 1; r < found; r++) {
+				if (peak[roots[r]] > peak[highest])
+					highest = roots[r];
+			}
+			int remaining = 1;
+			for (int r = 0; r < found; r++) {
+				int root = roots[r];
+				if (root == highest)
+					continue;
+				if (peak[root] - level < tolerance) {
+					parent[root] = highest;
+				} else {
+					remaining++;
+				}
+			}
+			labels[i] = remaining > 1 ? LINE : highest;
+		}
+
+		for (int i = 0; i < size; i++) {
+			if (labels[i] > 0)
+				result[i] = 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Radix sort of the pixels on max - squared distance, 16 bits at a time,
+	 * the pixels of the same level stay in the raster order
+	 */
+	private static int[] sortByDecreasingDistance(int[] pixels, int[] squared,
+			int max) {
+		int[] sorted = new int[pixels.length];
+		int[] counts = new int[65537];
+		for (int shift = 0; shift < 32; shift += 16) {
+			if (shift > 0 && (max >>> shift) == 0)
+				break;
+			Arrays.fill(counts, 0);
+			for (int pixel : pixels) {
+				counts[(((max - squared[pixel]) >>> shift) & 0xffff) + 1]++;
+			}
+			for (int bucket = 1; bucket < counts.length; bucket++) {
+				counts[bucket] += counts[bucket - 1];
+			}
+			for (int pixel : pixels) {
+				sorted[counts[((max - squared[pixel]) >>> shift) & 0xffff]++] = pixel;
+			}
+			int[] swap = pixels;
+			pixels = sorted;
+			sorted = swap;
+		}
+		return pixels;
+	}
+
+	private static int find(int[] parent, int label) {
+		while (parent[label] != label) {
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+}
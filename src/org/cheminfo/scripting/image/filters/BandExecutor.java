@@ -0,0 +1,170 @@
+package org.cheminfo.scripting.image.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits the rows of an image in horizontal bands and processes them on a
+ * pool of threads. Every band writes its own rows of the result and reads the
+ * source image that is shared between all the bands, so the rows of the
+ * neighbourhood that are outside of the band (the halo) don't need to be
+ * copied. Values that depend on the whole image (min / max, histograms) are
+ * computed per band and merged afterwards by the filter.
+ */
+public class BandExecutor {
+	// bands with less rows than that are not worth a task
+	private static final int MIN_ROWS = 16;
+
+	private static BandExecutor shared;
+	private static final ThreadLocal<Boolean> inPool = new ThreadLocal<Boolean>();
+
+	private final int threads;
+	private ExecutorService service;
+
+	/**
+	 * The work done on a band of rows
+	 */
+	public interface Band {
+		/**
+		 * @param band
+		 *            index of the band, between 0 and the number of bands
+		 * @param start
+		 *            first row of the band
+		 * @param end
+		 *            row after the last row of the band
+		 */
+		void process(int band, int start, int end);
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads, 1 runs everything in the calling thread
+	 */
+	public BandExecutor(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException(
+					"The number of threads must be at least 1");
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the executor used by the filters when none is specified, it has
+	 *         one thread per available processor
+	 */
+	public static synchronized BandExecutor getShared() {
+		if (shared == null)
+			shared = new BandExecutor(Runtime.getRuntime()
+					.availableProcessors());
+		return shared;
+	}
+
+	/**
+	 * Replaces the executor used by the filters when none is specified
+	 *
+	 * @param executor
+	 */
+	public static synchronized void setShared(BandExecutor executor) {
+		if (shared != null && shared != executor)
+			shared.shutdown();
+		shared = executor;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param height
+	 *            number of rows to process
+	 * @return the number of bands the rows will be split in
+	 */
+	public int getBandCount(int height) {
+		if (threads == 1 || Boolean.TRUE.equals(inPool.get()))
+			return 1;
+		int bands = Math.min(threads, height / MIN_ROWS);
+		return Math.max(bands, 1);
+	}
+
+	/**
+	 * Processes the rows [0, height) band by band and waits for all of them.
+	 * The bands are always the same for a given height, so the results merged
+	 * by band index are deterministic.
+	 *
+	 * @param height
+	 * @param band
+	 */
+	public void execute(int height, final Band band) {
+		final int bands = getBandCount(height);
+		if (bands == 1) {
+			band.process(0, 0, height);
+			return;
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>(bands);
+		for (int i = 0; i < bands; i++) {
+			final int index = i;
+			final int start = (int) ((long) height * i / bands);
+			final int end = (int) ((long) height * (i + 1) / bands);
+			futures.add(getService().submit(new Runnable() {
+				public void run() {
+					band.process(index, start, end);
+				}
+			}));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException ex) {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while filtering", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Stops the threads of this executor
+	 */
+	public synchronized void shutdown() {
+		if (service != null) {
+			service.shutdown();
+			service = null;
+		}
+	}
+
+	private synchronized ExecutorService getService() {
+		if (service == null) {
+			service = Executors.newFixedThreadPool(threads,
+					new ThreadFactory() {
+						private int count = 0;
+
+						public Thread newThread(final Runnable runnable) {
+							Thread thread = new Thread(new Runnable() {
+								public void run() {
+									// bands started from a band are not split
+									// again, it could exhaust the pool
+									inPool.set(Boolean.TRUE);
+									runnable.run();
+								}
+							}, "BandExecutor-" + (++count));
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return service;
+	}
+}
@@ -3,80 +3,276 @@ package org.cheminfo.scripting.image.filters;
 import ij.process.ImageProcessor;
 
 public class InvariantFeatureHistogramFilter {
+	private static final int ROUND = 16;
+	// largest distance between a pixel and one of its samples
+	private static final int REACH = 8;
+	// from this coordinate on, (int) (offset + x) is always x + (int) (offset
+	// + FIRST_INNER) - FIRST_INNER. Closer to 0, adding a tiny offset like
+	// 8*cos(3*PI/2) may round x down to x-1.
+	private static final int FIRST_INNER = 32;
+
+	/**
+	 * Math.sqrt(a*b) for every pair of 8 bits values
+	 */
+	private static double[] sqrtTable;
+
 	private ImageProcessor grayImage;
+	private BandExecutor executor;
+	private boolean lowMemory = false;
+	// sample offsets, they only depend on the position on the circle
+	private double[] dx1 = new double[ROUND];
+	private double[] dy1 = new double[ROUND];
+	private double[] dx2 = new double[ROUND];
+	private double[] dy2 = new double[ROUND];
+	// relative position in the array of the samples of an inner pixel
+	private int[] index1 = new int[ROUND];
+	private int[] index2 = new int[ROUND];
+	// the pixels if they can be read directly, null otherwise
+	private byte[] bytes;
+	private double[] sqrt = getSqrtTable();
 
 	public InvariantFeatureHistogramFilter(ImageProcessor grayImage) {
 		this.grayImage = grayImage;
+		int width = grayImage.getWidth();
+		for (int r = 0; r < ROUND; r++) {
+			double phi = 2 * Math.PI * (double) r / (double) ROUND;
+			dx1[r] = 4 * Math.cos(phi);
+			dy1[r] = 4 * Math.sin(phi);
+			dx2[r] = -8 * Math.sin(phi);
+			dy2[r] = 8 * Math.cos(phi);
+			index1[r] = ((int) (dx1[r] + FIRST_INNER) - FIRST_INNER)
+					+ ((int) (dy1[r] + FIRST_INNER) - FIRST_INNER) * width;
+			index2[r] = ((int) (dx2[r] + FIRST_INNER) - FIRST_INNER)
+					+ ((int) (dy2[r] + FIRST_INNER) - FIRST_INNER) * width;
+		}
+		Object pixels = grayImage.getPixels();
+		if (pixels instanceof byte[])
+			bytes = (byte[]) pixels;
 	}
 
 	public byte[] performExtraction() {
-		int width = grayImage.getWidth();
-		int height = grayImage.getHeight();
-		int margin = 0;
-		int offset, i;
-		double[] invariant = new double[height * width];
-		double max = 0, min = 255;
+		final int width = grayImage.getWidth();
+		final int height = grayImage.getHeight();
+		// in low memory mode the values are computed again in the second pass
+		final double[] invariant = lowMemory ? null
+				: new double[height * width];
 
-		for (int y = margin; y < (height - margin); y++) {
-			offset = y * width;
-			for (int x = margin; x < (width - margin); x++) {
-				i = offset + x;
-				invariant[i] = localSupport(x, y);
-				if (invariant[i] > max)
-					max = invariant[i];
-				if (invariant[i] < min)
-					min = invariant[i];
+		// first pass: the values and the min / max of every band
+		BandExecutor executor = getExecutor();
+		int bands = executor.getBandCount(height);
+		final double[] bandMax = new double[bands];
+		final double[] bandMin = new double[bands];
+		executor.execute(height, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				int margin = 0;
+				int offset, i;
+				double max = 0, min = 255;
+				double value;
+				for (int y = Math.max(start, margin); y < Math.min(end, height
+						- margin); y++) {
+					offset = y * width;
+					for (int x = margin; x < (width - margin); x++) {
+						i = offset + x;
+						value = support(x, y, i);
+						if (invariant != null)
+							invariant[i] = value;
+						if (value > max)
+							max = value;
+						if (value < min)
+							min = value;
+					}
+				}
+				bandMax[band] = max;
+				bandMin[band] = min;
 			}
+		});
+		double max = 0, min = 255;
+		for (int band = 0; band < bands; band++) {
+			if (bandMax[band] > max)
+				max = bandMax[band];
+			if (bandMin[band] < min)
+				min = bandMin[band];
 		}
 
-		// Normalize values
-		byte[] pixels = new byte[height * width];
-		double interval = max - min;
-		for (i = 0; i < invariant.length; i++) {
-			double num = ((invariant[i] - min) / interval) * 255;
-			pixels[i] = (byte) (num);
-		}
+		// second pass: normalize values
+		final byte[] pixels = new byte[height * width];
+		final double low = min;
+		final double interval = max - min;
+		executor.execute(height, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				if (invariant != null) {
+					for (int i = start * width; i < end * width; i++) {
+						double num = ((invariant[i] - low) / interval) * 255;
+						pixels[i] = (byte) (num);
+					}
+					return;
+				}
+				for (int y = start; y < end; y++) {
+					int offset = y * width;
+					for (int x = 0; x < width; x++) {
+						int i = offset + x;
+						double num = ((support(x, y, i) - low) / interval) * 255;
+						pixels[i] = (byte) (num);
+					}
+				}
+			}
+		});
 
 		return pixels;
 	}
 
+	/**
+	 * Computes the histogram of the invariant feature of the pixels of a
+	 * region. The values are not normalized so the histograms of different
+	 * images and regions can be compared: bin b counts the values between
+	 * 256*b/bins and 256*(b+1)/bins.
+	 *
+	 * @param bins
+	 *            number of bins (1-256)
+	 * @param region
+	 * @return the histogram
+	 */
+	public int[] histogram(final int bins, final TextureRegion region) {
+		final int width = grayImage.getWidth();
+		int height = grayImage.getHeight();
+		final int first = region.firstRow(0);
+		int rows = Math.max(region.endRow(height, 0) - first, 0);
+		BandExecutor executor = getExecutor();
+		final int[][] histograms = new int[executor.getBandCount(rows)][];
+		executor.execute(rows, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				int[] histogram = new int[bins];
+				histograms[band] = histogram;
+				int firstColumn = region.firstColumn(0);
+				int endColumn = region.endColumn(width, 0);
+				for (int y = first + start; y < first + end; y++) {
+					for (int x = firstColumn; x < endColumn; x++) {
+						if (!region.contains(x, y))
+							continue;
+						int bin = (int) (support(x, y, y * width + x) * bins / 256);
+						histogram[Math.min(Math.max(bin, 0), bins - 1)]++;
+					}
+				}
+			}
+		});
+		int[] histogram = new int[bins];
+		for (int[] bandHistogram : histograms) {
+			for (int i = 0; i < bins; i++) {
+				histogram[i] += bandHistogram[i];
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Same value as localSupport, inner pixels whose samples are all inside
+	 * the image are read directly from the array
+	 */
+	private double support(int x, int y, int i) {
+		if (bytes != null && x >= FIRST_INNER && y >= FIRST_INNER
+				&& x < grayImage.getWidth() - REACH
+				&& y < grayImage.getHeight() - REACH) {
+			double sum = 0.0;
+			for (int r = 0; r < ROUND; r++) {
+				sum += sqrt[((bytes[i + index1[r]] & 0xff) << 8)
+						| (bytes[i + index2[r]] & 0xff)];
+			}
+			return sum / (double) (2 * ROUND);
+		}
+		return localSupport(x, y);
+	}
+
 	public double localSupport(int x, int y) {
 		double sum = 0.0;
+		int width = grayImage.getWidth();
+		int height = grayImage.getHeight();
 
-		int round = 16;
 		int total = 0;
-		for (int r = 0; r < round; r++) {
-			double phi = 2 * Math.PI * (double) r / (double) round;
+		for (int r = 0; r < ROUND; r++) {
 			int a = 0, b = 0;
-			int x1 = (int) (4 * Math.cos(phi) + x);
-			int y1 = (int) (4 * Math.sin(phi) + y);
-			int x2 = (int) (-8 * Math.sin(phi) + x);
-			int y2 = (int) (8 * Math.cos(phi) + y);
+			int x1 = (int) (dx1[r] + x);
+			int y1 = (int) (dy1[r] + y);
+			int x2 = (int) (dx2[r] + x);
+			int y2 = (int) (dy2[r] + y);
 
-			if (x1 >= 0 && x1 < grayImage.getWidth() && y1 >= 0
-					&& y1 < grayImage.getHeight()) {
+			if (x1 >= 0 && x1 < width && y1 >= 0 && y1 < height) {
 				a = grayImage.getPixel(x1, y1);
 				total++;
 			}
 
-			if (x2 >= 0 && x2 < grayImage.getWidth() && y2 >= 0
-					&& y2 < grayImage.getHeight()) {
+			if (x2 >= 0 && x2 < width && y2 >= 0 && y2 < height) {
 				b = grayImage.getPixel(x2, y2);
 				total++;
 			}
 
-			sum += Math.sqrt((double) a * (double) b);
+			if (((a | b) & ~0xff) == 0) {
+				sum += sqrt[(a << 8) | b];
+			} else {
+				sum += Math.sqrt((double) a * (double) b);
+			}
 		}
 		double average = sum / (double) total;
 		return average;
 	}
 
+	/**
+	 * @return the executor that processes the bands of rows, the shared one if
+	 *         none was set
+	 */
+	public BandExecutor getExecutor() {
+		if (executor == null)
+			return BandExecutor.getShared();
+		return executor;
+	}
+
+	public void setExecutor(BandExecutor executor) {
+		this.executor = executor;
+	}
+
+	public boolean isLowMemory() {
+		return lowMemory;
+	}
+
+	/**
+	 * @param lowMemory
+	 *            if true the support is computed twice instead of being kept
+	 *            for every pixel: 1 byte per pixel instead of 9
+	 */
+	public void setLowMemory(boolean lowMemory) {
+		this.lowMemory = lowMemory;
+	}
+
+	private static synchronized double[] getSqrtTable() {
+		if (sqrtTable == null) {
+			double[] table = new double[256 * 256];
+			for (int a = 0; a < 256; a++) {
+				for (int b = 0; b < 256; b++) {
+					table[(a << 8) | b] = Math.sqrt((double) a * (double) b);
+				}
+			}
+			sqrtTable = table;
+		}
+		return sqrtTable;
+	}
+
 	/**
 	 * Apply a invariant feature filter
 	 */
 	public static void invariantFeatureHistogram(ImageProcessor processor) {
+		invariantFeatureHistogram(processor, false);
+	}
+
+	/**
+	 * Apply a invariant feature filter
+	 *
+	 * @param lowMemory
+	 *            see setLowMemory
+	 */
+	public static void invariantFeatureHistogram(ImageProcessor processor,
+			boolean lowMemory) {
 		InvariantFeatureHistogramFilter invariantTexture = new InvariantFeatureHistogramFilter(
 				processor.convertToByte(true));
+		invariantTexture.setLowMemory(lowMemory);
 		byte[] bytes = invariantTexture.performExtraction();
 		processor.setPixels(bytes);
 	}
@@ -3,9 +3,28 @@ package org.cheminfo.scripting.image.filters;
 import ij.process.ImageProcessor;
 
 public class LocalBinaryPartitionFilter {
+	/**
+	 * The raw code of the neighbourhood
+	 */
+	public static final int BASIC = 0;
+	/**
+	 * Uniform patterns (at most 2 transitions) get their own label, all the
+	 * other patterns share the last label: points*(points-1)+3 labels (59 for
+	 * 8 points)
+	 */
+	public static final int UNIFORM = 1;
+	/**
+	 * The smallest code among all the circular rotations of the pattern
+	 */
+	public static final int ROTATION_INVARIANT = 2;
+
 	private int width;
 	private int height;
 	private ImageProcessor grayImage;
+	private int variant = BASIC;
+	private double radius = 1;
+	private int points = 8;
+	private BandExecutor executor;
 
 	public LocalBinaryPartitionFilter(ImageProcessor grayImage) {
 		this.grayImage = grayImage;
@@ -14,27 +33,257 @@ public class LocalBinaryPartitionFilter {
 	public byte[] performExtraction() {
 		width = grayImage.getWidth();
 		height = grayImage.getHeight();
-		byte[] pixels = (byte[]) grayImage.getPixels();
-
 		byte[] result = new byte[width * height];
+		extract(result, null, new TextureRegion(width, height));
+		return result;
+	}
+
+	/**
+	 * Computes the histogram of the codes without building the filtered image.
+	 * It has 256 bins except for the UNIFORM variant which has
+	 * points*(points-1)+3 bins (59 bins for 8 points).
+	 *
+	 * @return the histogram of the codes
+	 */
+	public int[] histogram() {
+		return histogram(new TextureRegion(grayImage.getWidth(),
+				grayImage.getHeight()));
+	}
+
+	/**
+	 * Computes the histogram of the codes of the pixels of a region
+	 *
+	 * @param region
+	 * @return the histogram of the codes
+	 * @see #histogram()
+	 */
+	public int[] histogram(TextureRegion region) {
+		width = grayImage.getWidth();
+		height = grayImage.getHeight();
+		int[] histogram = new int[getNumberOfBins()];
+		extract(null, histogram, region);
+		return histogram;
+	}
+
+	/**
+	 * @return the number of different values the codes can take
+	 */
+	public int getNumberOfBins() {
+		if (variant == UNIFORM)
+			return points * (points - 1) + 3;
+		return 256;
+	}
+
+	/**
+	 * Fills the result and / or the histogram for the pixels of the region,
+	 * any of them may be null. Pixels that are too close to the border to have
+	 * a full neighbourhood are skipped.
+	 */
+	private void extract(final byte[] result, final int[] histogram,
+			final TextureRegion region) {
+		final byte[] pixels = (byte[]) grayImage.getPixels();
+		final boolean square = radius == 1 && points == 8;
+		final int margin = square ? 1 : (int) Math.ceil(radius) + 1;
+		final int first = region.firstRow(margin);
+		int rows = Math.max(region.endRow(height, margin) - first, 0);
+		BandExecutor executor = getExecutor();
+		final int[][] histograms = new int[executor.getBandCount(rows)][];
+		executor.execute(rows, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				int[] bandHistogram = null;
+				if (histogram != null) {
+					bandHistogram = new int[histogram.length];
+					histograms[band] = bandHistogram;
+				}
+				if (square) {
+					extractSquare(pixels, result, bandHistogram, region, first
+							+ start, first + end);
+				} else {
+					extractCircular(pixels, result, bandHistogram, region,
+							margin, first + start, first + end);
+				}
+			}
+		});
+		if (histogram != null) {
+			for (int[] bandHistogram : histograms) {
+				for (int i = 0; i < histogram.length; i++) {
+					histogram[i] += bandHistogram[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Radius 1 and 8 points: the neighbours are read directly from the rows
+	 * above and below the pixel
+	 */
+	private void extractSquare(byte[] pixels, byte[] result, int[] histogram,
+			TextureRegion region, int start, int end) {
+		int[] table = squareTable();
+		int offset, up, down, index, value, code;
+		int firstColumn = region.firstColumn(1);
+		int endColumn = region.endColumn(width, 1);
+		for (int y = start; y < end; y++) {
+			offset = y * width;
+			up = offset - width;
+			down = offset + width;
+			for (int x = firstColumn; x < endColumn; x++) {
+				if (!region.contains(x, y))
+					continue;
+				index = offset + x;
+				value = pixels[index] & 0xff;
+				code = 0;
+				if ((pixels[up + x - 1] & 0xff) > value)
+					code |= 1;
+				if ((pixels[up + x] & 0xff) > value)
+					code |= 2;
+				if ((pixels[up + x + 1] & 0xff) > value)
+					code |= 4;
+				if ((pixels[index - 1] & 0xff) > value)
+					code |= 8;
+				if ((pixels[index + 1] & 0xff) > value)
+					code |= 16;
+				if ((pixels[down + x - 1] & 0xff) > value)
+					code |= 32;
+				if ((pixels[down + x] & 0xff) > value)
+					code |= 64;
+				if ((pixels[down + x + 1] & 0xff) > value)
+					code |= 128;
+				if (table != null)
+					code = table[code];
+				if (result != null)
+					result[index] = (byte) code;
+				if (histogram != null)
+					histogram[code]++;
+			}
+		}
+	}
 
-		int offset, index;
-		for (int y = 1; y < height - 1; y++) {
+	/**
+	 * Any radius and number of points: the neighbours are sampled on a circle
+	 * with a bilinear interpolation. Offsets and weights only depend on the
+	 * point so they are not computed per pixel.
+	 */
+	private void extractCircular(byte[] pixels, byte[] result,
+			int[] histogram, TextureRegion region, int margin, int start,
+			int end) {
+		int[] table = variantTable(points, variant);
+		int[] corner = new int[points];
+		double[] w00 = new double[points];
+		double[] w01 = new double[points];
+		double[] w10 = new double[points];
+		double[] w11 = new double[points];
+		for (int p = 0; p < points; p++) {
+			double phi = 2 * Math.PI * p / points;
+			double dx = radius * Math.cos(phi);
+			double dy = -radius * Math.sin(phi);
+			// avoid 0.9999999 being floored to 0
+			dx = Math.round(dx * 1e6) / 1e6;
+			dy = Math.round(dy * 1e6) / 1e6;
+			int fx = (int) Math.floor(dx);
+			int fy = (int) Math.floor(dy);
+			double tx = dx - fx;
+			double ty = dy - fy;
+			corner[p] = fy * width + fx;
+			w00[p] = (1 - tx) * (1 - ty);
+			w01[p] = tx * (1 - ty);
+			w10[p] = (1 - tx) * ty;
+			w11[p] = tx * ty;
+		}
+		int offset, index, value, code, position;
+		double sample;
+		int firstColumn = region.firstColumn(margin);
+		int endColumn = region.endColumn(width, margin);
+		for (int y = start; y < end; y++) {
 			offset = y * width;
-			for (int x = 1; x < width - 1; x++) {
+			for (int x = firstColumn; x < endColumn; x++) {
+				if (!region.contains(x, y))
+					continue;
 				index = offset + x;
-				result[index] = analyzeTexture(pixels, x, y, index);
+				value = pixels[index] & 0xff;
+				code = 0;
+				for (int p = 0; p < points; p++) {
+					position = index + corner[p];
+					sample = w00[p] * (pixels[position] & 0xff) + w01[p]
+							* (pixels[position + 1] & 0xff) + w10[p]
+							* (pixels[position + width] & 0xff) + w11[p]
+							* (pixels[position + width + 1] & 0xff);
+					if (sample - value > 1e-9)
+						code |= 1 << p;
+				}
+				code = table[code];
+				if (result != null)
+					result[index] = (byte) code;
+				if (histogram != null)
+					histogram[code]++;
 			}
 		}
+	}
 
+	/**
+	 * The bits of the square neighbourhood are not stored in circular order.
+	 * For the BASIC variant we keep that historical layout, for the other ones
+	 * the code is first reordered.
+	 *
+	 * @return the table that converts a square code, null for the identity
+	 */
+	private int[] squareTable() {
+		if (variant == BASIC)
+			return null;
+		// bit of the square code used for each position around the circle
+		int[] circular = { 0, 1, 2, 4, 7, 6, 5, 3 };
+		int[] table = variantTable(8, variant);
+		int[] result = new int[256];
+		for (int code = 0; code < 256; code++) {
+			int reordered = 0;
+			for (int p = 0; p < 8; p++) {
+				if ((code & (1 << circular[p])) != 0)
+					reordered |= 1 << p;
+			}
+			result[code] = table[reordered];
+		}
 		return result;
 	}
 
 	/**
-	 * It check the neighborhood of a pixel and build a binary string in which
+	 * @return for every code written in circular order its value in the given
+	 *         variant
+	 */
+	private static int[] variantTable(int points, int variant) {
+		int size = 1 << points;
+		int mask = size - 1;
+		int[] table = new int[size];
+		int nextLabel = 0;
+		for (int code = 0; code < size; code++) {
+			if (variant == UNIFORM) {
+				int rotated = ((code >> 1) | (code << (points - 1))) & mask;
+				if (Integer.bitCount(code ^ rotated) <= 2) {
+					table[code] = nextLabel++;
+				} else {
+					table[code] = points * (points - 1) + 2;
+				}
+			} else if (variant == ROTATION_INVARIANT) {
+				int min = code;
+				int rotated = code;
+				for (int p = 1; p < points; p++) {
+					rotated = ((rotated >> 1) | (rotated << (points - 1)))
+							& mask;
+					if (rotated < min)
+						min = rotated;
+				}
+				table[code] = min;
+			} else {
+				table[code] = code;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * It check the neighborhood of a pixel and build a binary code in which
 	 * each position has 1 if its value is greater than the pixel and 0 if its
 	 * value is lesser than the pixel
-	 * 
+	 *
 	 * @param pixels
 	 *            The original array of pixels (Gray scale)
 	 * @param x
@@ -47,29 +296,80 @@ public class LocalBinaryPartitionFilter {
 	 */
 
 	public byte analyzeTexture(byte[] pixels, int x, int y, int index) {
-		// Take into account boundary conditions...
-		int[] neighbors = { x - 1 + width * (y - 1), x + width * (y - 1),
-				x + 1 + width * (y - 1), x - 1 + width * (y),
-				x + 1 + width * (y), x - 1 + width * (y + 1),
-				x + width * (y + 1), x + 1 + width * (y + 1) };
-
-		int localValue = pixels[index];
-		String binary = "";
+		int up = index - width;
+		int down = index + width;
+		int localValue = pixels[index] & 0xff;
 		int code = 0;
-		int one = 1;
-		int temp;
-
-		for (int pos = 0; pos < neighbors.length; pos++) {
-			temp = pixels[neighbors[pos]];
-			if (temp > localValue) {
-				binary = "1" + binary;
-				code += one << pos;
-			} else
-				binary = "0" + binary;
-		}
+		if ((pixels[up - 1] & 0xff) > localValue)
+			code |= 1;
+		if ((pixels[up] & 0xff) > localValue)
+			code |= 2;
+		if ((pixels[up + 1] & 0xff) > localValue)
+			code |= 4;
+		if ((pixels[index - 1] & 0xff) > localValue)
+			code |= 8;
+		if ((pixels[index + 1] & 0xff) > localValue)
+			code |= 16;
+		if ((pixels[down - 1] & 0xff) > localValue)
+			code |= 32;
+		if ((pixels[down] & 0xff) > localValue)
+			code |= 64;
+		if ((pixels[down + 1] & 0xff) > localValue)
+			code |= 128;
 		return (byte) code;
 	}
 
+	public int getVariant() {
+		return variant;
+	}
+
+	/**
+	 * @param variant
+	 *            BASIC, UNIFORM or ROTATION_INVARIANT
+	 */
+	public void setVariant(int variant) {
+		this.variant = variant;
+	}
+
+	public double getRadius() {
+		return radius;
+	}
+
+	public void setRadius(double radius) {
+		if (radius <= 0)
+			throw new IllegalArgumentException("Radius must be positive");
+		this.radius = radius;
+	}
+
+	public int getPoints() {
+		return points;
+	}
+
+	/**
+	 * @param points
+	 *            number of neighbours sampled on the circle (1-8)
+	 */
+	public void setPoints(int points) {
+		if (points < 1 || points > 8)
+			throw new IllegalArgumentException(
+					"The number of points must be between 1 and 8");
+		this.points = points;
+	}
+
+	/**
+	 * @return the executor that processes the bands of rows, the shared one if
+	 *         none was set
+	 */
+	public BandExecutor getExecutor() {
+		if (executor == null)
+			return BandExecutor.getShared();
+		return executor;
+	}
+
+	public void setExecutor(BandExecutor executor) {
+		this.executor = executor;
+	}
+
 	/**
 	 * Apply a local Binary Partition filter
 	 */
@@ -2,34 +2,260 @@ package org.cheminfo.scripting.image.filters;
 
 import ij.process.ImageProcessor;
 
+import java.awt.Rectangle;
+
 /**
  * @author jccaicedo
  */
 public class TamuraCoarsenessFilter {
+	/**
+	 * Sums every neighbourhood pixel by pixel (original implementation)
+	 */
+	public static final int DIRECT = 0;
+	/**
+	 * Gets every neighbourhood sum from one integral image in constant time
+	 */
+	public static final int SUMMED_AREA = 1;
+
 	private int maxWindowSize = 6;
 	private ImageProcessor grayImage;
+	private int mode = SUMMED_AREA;
+	private BandExecutor executor;
 
 	public TamuraCoarsenessFilter(ImageProcessor grayImage) {
 		this.grayImage = grayImage;
 	}
 
 	public byte[] performExtraction() {
+		final int width = getGrayImage().getWidth();
+		final int height = getGrayImage().getHeight();
+		final byte[] coarseness = new byte[width * height];
+		if (mode == SUMMED_AREA) {
+			final Rectangle area = new Rectangle(0, 0, width, height);
+			final long[] integral = integralImage(area);
+			getExecutor().execute(height, new BandExecutor.Band() {
+				public void process(int band, int start, int end) {
+					extractSummedArea(integral, area, coarseness, start, end);
+				}
+			});
+			return coarseness;
+		}
+
+		getExecutor().execute(height, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				int margin = 0; // in pixels
+
+				int offset, i;
+
+				for (int y = Math.max(start, margin); y < Math.min(end, height
+						- margin); y++) {
+					offset = y * width;
+					for (int x = margin; x < (width - margin); x++) {
+						i = offset + x;
+						coarseness[i] = (byte) selectHighestDiff(x, y);
+					}
+				}
+			}
+		});
+
+		return coarseness;
+	}
+
+	/**
+	 * Rows [start, end) of the coarseness, same result as the direct
+	 * extraction.
+	 */
+	private void extractSummedArea(long[] integral, Rectangle area,
+			byte[] coarseness, int start, int end) {
 		int width = getGrayImage().getWidth();
+
+		for (int y = start; y < end; y++) {
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				coarseness[offset + x] = (byte) coarseness(integral, area, x, y);
+			}
+		}
+	}
+
+	/**
+	 * @param integral
+	 *            the integral image of the gray image over area
+	 * @param area
+	 *            the part of the image covered by the integral image, it must
+	 *            contain the neighbourhoods of the pixel
+	 * @return the normalized coarseness of the pixel (0-255)
+	 */
+	int coarseness(long[] integral, Rectangle area, int x, int y) {
+		return bestWindowSize(integral, area, x, y) * (255 / maxWindowSize);
+	}
+
+	/**
+	 * @param integral
+	 *            the integral image of the gray image over area
+	 * @return the k (1-maxWindowSize) for which the neighbourhoods of size 2^k
+	 *         differ the most, 0 if they never differ
+	 */
+	private int bestWindowSize(long[] integral, Rectangle area, int x, int y) {
+		int width = getGrayImage().getWidth();
+		int height = getGrayImage().getHeight();
+		long maxValue = 0;
+		int maxK = 0;
+		for (int k = 1; k <= maxWindowSize; k++) {
+			int limit = 1 << k;
+			int twoKMinusOne = limit >> 1;
+			int shift = 2 * k;
+			long value;
+			if (x - limit >= 0 && x + limit <= width) {
+				// same rows, columns x+1..x+limit-1 and x-limit+1..x-1
+				int top = y - twoKMinusOne + 1;
+				int bottom = y + twoKMinusOne;
+				long valueA = boxSum(integral, area, x + 1, top, x
+						+ limit, bottom) >> shift;
+				long valueB = boxSum(integral, area, x - limit + 1,
+						top, x, bottom) >> shift;
+				value = Math.abs(valueA - valueB);
+				if (value > maxValue) {
+					maxValue = value;
+					maxK = k;
+				}
+			}
+			if (y - limit >= 0 && y + limit <= height) {
+				int left = x - twoKMinusOne + 1;
+				int right = x + twoKMinusOne;
+				long valueA = boxSum(integral, area, left, y + 1,
+						right, y + limit) >> shift;
+				long valueB = boxSum(integral, area, left, y - limit
+						+ 1, right, y) >> shift;
+				value = Math.abs(valueA - valueB);
+				if (value > maxValue) {
+					maxValue = value;
+					maxK = k;
+				}
+			}
+		}
+		return maxK;
+	}
+
+	/**
+	 * Computes the Tamura coarseness of a region: the average over its pixels
+	 * of the size 2^k of the neighbourhoods that differ the most
+	 *
+	 * @param region
+	 * @return the coarseness, between 1 and 2^maxWindowSize
+	 */
+	public double coarseness(final TextureRegion region) {
+		final int width = getGrayImage().getWidth();
 		int height = getGrayImage().getHeight();
-		byte[] coarseness = new byte[width * height];
-		int margin = 0; // in pixels
+		// the neighbourhoods of the pixels of the region are at most
+		// 2^maxWindowSize pixels away, only this part of the image is summed
+		int halo = 1 << maxWindowSize;
+		Rectangle bounds = region.getBounds();
+		bounds.grow(halo, halo);
+		final Rectangle area = bounds.intersection(new Rectangle(0, 0, width,
+				height));
+		if (area.isEmpty())
+			return 0;
+		final long[] integral = integralImage(area);
+		final int first = region.firstRow(0);
+		int rows = Math.max(region.endRow(height, 0) - first, 0);
+		BandExecutor executor = getExecutor();
+		int bands = executor.getBandCount(rows);
+		final long[] bandSum = new long[bands];
+		final long[] bandCount = new long[bands];
+		executor.execute(rows, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				int firstColumn = region.firstColumn(0);
+				int endColumn = region.endColumn(width, 0);
+				for (int y = first + start; y < first + end; y++) {
+					for (int x = firstColumn; x < endColumn; x++) {
+						if (!region.contains(x, y))
+							continue;
+						bandSum[band] += 1 << bestWindowSize(integral, area,
+								x, y);
+						bandCount[band]++;
+					}
+				}
+			}
+		});
+		long sum = 0, count = 0;
+		for (int band = 0; band < bands; band++) {
+			sum += bandSum[band];
+			count += bandCount[band];
+		}
+		return count == 0 ? 0 : (double) sum / count;
+	}
 
-		int offset, i;
+	/**
+	 * The table is kept in longs: its last entry is the sum of the whole
+	 * area, that overflows an int above about 8 megapixels of 8 bits.
+	 *
+	 * @param area
+	 *            a part of the image
+	 * @return the (area.width+1)*(area.height+1) integral image of the part
+	 */
+	long[] integralImage(Rectangle area) {
+		return integralImage(area, null);
+	}
 
-		for (int y = margin; y < (height - margin); y++) {
-			offset = y * width;
-			for (int x = margin; x < (width - margin); x++) {
-				i = offset + x;
-				coarseness[i] = (byte) selectHighestDiff(x, y);
+	/**
+	 * @param integral
+	 *            returned by a previous call for an area of the same width,
+	 *            it is filled again if it is large enough
+	 * @see #integralImage(Rectangle)
+	 */
+	long[] integralImage(Rectangle area, long[] integral) {
+		int width = getGrayImage().getWidth();
+		int stride = area.width + 1;
+		// the first row and the first column stay 0
+		int size = stride * (area.height + 1);
+		if (integral == null || integral.length < size)
+			integral = new long[size];
+		Object pixels = getGrayImage().getPixels();
+		byte[] bytes = (pixels instanceof byte[]) ? (byte[]) pixels : null;
+		for (int y = 0; y < area.height; y++) {
+			long rowSum = 0;
+			int above = y * stride;
+			int current = above + stride;
+			int offset = (area.y + y) * width + area.x;
+			for (int x = 0; x < area.width; x++) {
+				if (bytes != null)
+					rowSum += bytes[offset + x] & 0xff;
+				else
+					rowSum += getGrayImage().getPixel(area.x + x, area.y + y);
+				integral[current + x + 1] = integral[above + x + 1] + rowSum;
 			}
 		}
+		return integral;
+	}
 
-		return coarseness;
+	/**
+	 * Sum of the pixels in [x1,x2) x [y1,y2), the part outside of the image
+	 * counts as 0 like getPixel does.
+	 *
+	 * @param area
+	 *            the part of the image covered by integral, the part of the
+	 *            box inside the image must be in it
+	 */
+	private static long boxSum(long[] integral, Rectangle area, int x1,
+			int y1, int x2, int y2) {
+		// the area is clipped to the image, so is the box
+		if (x1 < area.x)
+			x1 = area.x;
+		if (y1 < area.y)
+			y1 = area.y;
+		if (x2 > area.x + area.width)
+			x2 = area.x + area.width;
+		if (y2 > area.y + area.height)
+			y2 = area.y + area.height;
+		if (x1 >= x2 || y1 >= y2)
+			return 0;
+		int stride = area.width + 1;
+		x1 -= area.x;
+		x2 -= area.x;
+		y1 -= area.y;
+		y2 -= area.y;
+		return integral[y2 * stride + x2] - integral[y1 * stride + x2]
+				- integral[y2 * stride + x1] + integral[y1 * stride + x1];
 	}
 
 	private int average(int x, int y, int windowSize) {
@@ -131,4 +357,33 @@ public class TamuraCoarsenessFilter {
 	public ImageProcessor getGrayImage() {
 		return grayImage;
 	}
+
+	/**
+	 * @return the executor that processes the bands of rows, the shared one if
+	 *         none was set
+	 */
+	public BandExecutor getExecutor() {
+		if (executor == null)
+			return BandExecutor.getShared();
+		return executor;
+	}
+
+	public void setExecutor(BandExecutor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the computation mode, DIRECT or SUMMED_AREA
+	 */
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * @param mode
+	 *            the computation mode, DIRECT or SUMMED_AREA
+	 */
+	public void setMode(int mode) {
+		this.mode = mode;
+	}
 }
\ No newline at end of file
@@ -1,47 +1,510 @@
 package org.cheminfo.scripting.image.filters;
 
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.Rectangle;
+import java.math.BigInteger;
 
 public class TamuraContrastFilter {
+	/**
+	 * Walks the whole window for every pixel (original implementation)
+	 */
+	public static final int DIRECT = 0;
+	/**
+	 * Derives the moments of every window from running sums of the raw
+	 * moments, the cost per pixel does not depend on the margin. The moments
+	 * are exact, the results can differ from DIRECT by one level. Only used
+	 * for 8 bits images, the sums of v^4 of the others do not fit in a long
+	 * and they are computed like DIRECT.
+	 */
+	public static final int SUMMED_AREA = 1;
+
 	private ImageProcessor grayImage;
 	int margin = 6; // in pixels
+	private int mode = SUMMED_AREA;
+	private boolean lowMemory = false;
+	private BandExecutor executor;
+	// rows computed at once by a band in low memory mode
+	private static final int CHUNK_ROWS = 64;
+	// n^4 * 255^4 / 12 fits in a long while n * 255 is below this
+	private static final long EXACT_LONG_LIMIT = 100000;
+	// up to this number of pixels in a window the terms of the fourth moment
+	// are products of two longs
+	private static final long PRODUCT_LIMIT = 100000;
+	private static final double TWO_TO_64 = 18446744073709551616.0;
 
 	public TamuraContrastFilter(ImageProcessor grayImage) {
 		this.grayImage = grayImage;
 	}
 
 	public byte[] performExtraction() {
+		if (lowMemory)
+			return performLowMemoryExtraction();
+		final int width = getGrayImage().getWidth();
+		int height = getGrayImage().getHeight();
+
+		// first pass: the contrast and its min / max
+		double[] range = new double[2];
+		final double[] contrastArray = contrastValues(range);
+
+		// second pass: normalize contrast values
+		final byte[] pixels = new byte[width * height];
+		final double low = range[0];
+		final double longInt = range[1] - range[0];
+		getExecutor().execute(height, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				for (int i = start * width; i < end * width; i++) {
+					double num = ((contrastArray[i] - low) / longInt) * 255;
+					pixels[i] = (byte) (num);
+				}
+			}
+		});
+
+		return pixels;
+	}
+
+	/**
+	 * Same result as performExtraction without keeping the contrast of every
+	 * pixel: each band computes a few rows at a time, once to find the min /
+	 * max and once more to normalize them into the result.
+	 */
+	private byte[] performLowMemoryExtraction() {
+		final int width = getGrayImage().getWidth();
+		int height = getGrayImage().getHeight();
+
+		// first pass: only the min / max
+		BandExecutor executor = getExecutor();
+		int bands = executor.getBandCount(height);
+		final double[] bandMax = new double[bands];
+		final double[] bandMin = new double[bands];
+		executor.execute(height, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				double[] chunk = new double[CHUNK_ROWS * width];
+				double max = 0, min = 256;
+				for (int first = start; first < end; first += CHUNK_ROWS) {
+					int last = Math.min(first + CHUNK_ROWS, end);
+					calculateContrast(chunk, first, first, last);
+					for (int i = 0; i < (last - first) * width; i++) {
+						if (chunk[i] > max)
+							max = chunk[i];
+						if (chunk[i] < min)
+							min = chunk[i];
+					}
+				}
+				bandMax[band] = max;
+				bandMin[band] = min;
+			}
+		});
+		double max = 0, min = 256;
+		for (int band = 0; band < bands; band++) {
+			if (bandMax[band] > max)
+				max = bandMax[band];
+			if (bandMin[band] < min)
+				min = bandMin[band];
+		}
+
+		// second pass: compute again and normalize
+		final byte[] pixels = new byte[width * height];
+		final double low = min;
+		final double longInt = max - min;
+		executor.execute(height, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				double[] chunk = new double[CHUNK_ROWS * width];
+				for (int first = start; first < end; first += CHUNK_ROWS) {
+					int last = Math.min(first + CHUNK_ROWS, end);
+					calculateContrast(chunk, first, first, last);
+					int offset = first * width;
+					for (int i = 0; i < (last - first) * width; i++) {
+						double num = ((chunk[i] - low) / longInt) * 255;
+						pixels[offset + i] = (byte) (num);
+					}
+				}
+			}
+		});
+
+		return pixels;
+	}
+
+	/**
+	 * Computes the contrast of every pixel before normalization
+	 *
+	 * @param range
+	 *            receives the min and the max of the contrast
+	 * @return the contrast of every pixel
+	 */
+	private double[] contrastValues(double[] range) {
+		final int width = getGrayImage().getWidth();
+		int height = getGrayImage().getHeight();
+		final double[] contrastArray = new double[width * height];
+
+		BandExecutor executor = getExecutor();
+		int bands = executor.getBandCount(height);
+		final double[] bandMax = new double[bands];
+		final double[] bandMin = new double[bands];
+		executor.execute(height, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				calculateContrast(contrastArray, 0, start, end);
+				double max = 0, min = 256;
+				for (int i = start * width; i < end * width; i++) {
+					if (contrastArray[i] > max)
+						max = contrastArray[i];
+					if (contrastArray[i] < min)
+						min = contrastArray[i];
+				}
+				bandMax[band] = max;
+				bandMin[band] = min;
+			}
+		});
+		double max = 0, min = 256;
+		for (int band = 0; band < bands; band++) {
+			if (bandMax[band] > max)
+				max = bandMax[band];
+			if (bandMin[band] < min)
+				min = bandMin[band];
+		}
+		range[0] = min;
+		range[1] = max;
+		return contrastArray;
+	}
+
+	/**
+	 * Computes the Tamura contrast of a region as a whole: sigma^2 divided by
+	 * the fourth root of the fourth moment around the mean, the same formula
+	 * as the one used for the window of each pixel in performExtraction
+	 *
+	 * @param region
+	 * @return the contrast, 0 for a flat region
+	 */
+	public double contrast(final TextureRegion region) {
+		if (!(getGrayImage() instanceof ByteProcessor))
+			return centeredContrast(region);
+		final int width = getGrayImage().getWidth();
+		int height = getGrayImage().getHeight();
+		final int first = region.firstRow(0);
+		int rows = Math.max(region.endRow(height, 0) - first, 0);
+		BandExecutor executor = getExecutor();
+		int bands = executor.getBandCount(rows);
+		// count, then the sums of v, v^2, v^3 and v^4 for every band
+		final long[][] moments = new long[bands][5];
+		executor.execute(rows, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				long[] sums = moments[band];
+				int firstColumn = region.firstColumn(0);
+				int endColumn = region.endColumn(width, 0);
+				for (int y = first + start; y < first + end; y++) {
+					for (int x = firstColumn; x < endColumn; x++) {
+						if (!region.contains(x, y))
+							continue;
+						long v = getGrayImage().getPixel(x, y);
+						long v2 = v * v;
+						sums[0]++;
+						sums[1] += v;
+						sums[2] += v2;
+						sums[3] += v2 * v;
+						sums[4] += v2 * v2;
+					}
+				}
+			}
+		});
+		long[] sums = new long[5];
+		for (int band = 0; band < bands; band++) {
+			for (int i = 0; i < 5; i++) {
+				sums[i] += moments[band][i];
+			}
+		}
+		if (sums[0] == 0)
+			return 0;
+		double contrast = contrastFromMoments(sums[0], sums[1], sums[2],
+				sums[3], sums[4]);
+		return Double.isNaN(contrast) ? 0 : contrast;
+	}
+
+	/**
+	 * Same as contrast(region) for the images that are not 8 bits: the sums of
+	 * v^4 would overflow, the moments are taken around the mean instead
+	 */
+	private double centeredContrast(final TextureRegion region) {
+		final int width = getGrayImage().getWidth();
+		int height = getGrayImage().getHeight();
+		final int first = region.firstRow(0);
+		int rows = Math.max(region.endRow(height, 0) - first, 0);
+		BandExecutor executor = getExecutor();
+		int bands = executor.getBandCount(rows);
+		// first pass: count and sum of v for every band
+		final long[][] sums = new long[bands][2];
+		executor.execute(rows, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				int firstColumn = region.firstColumn(0);
+				int endColumn = region.endColumn(width, 0);
+				for (int y = first + start; y < first + end; y++) {
+					for (int x = firstColumn; x < endColumn; x++) {
+						if (!region.contains(x, y))
+							continue;
+						sums[band][0]++;
+						sums[band][1] += getGrayImage().getPixel(x, y);
+					}
+				}
+			}
+		});
+		long n = 0, s1 = 0;
+		for (int band = 0; band < bands; band++) {
+			n += sums[band][0];
+			s1 += sums[band][1];
+		}
+		if (n == 0)
+			return 0;
+		final double mean = (double) s1 / n;
+		// second pass: second and fourth moments around the mean
+		final double[][] moments = new double[bands][2];
+		executor.execute(rows, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				int firstColumn = region.firstColumn(0);
+				int endColumn = region.endColumn(width, 0);
+				for (int y = first + start; y < first + end; y++) {
+					for (int x = firstColumn; x < endColumn; x++) {
+						if (!region.contains(x, y))
+							continue;
+						double tmp = getGrayImage().getPixel(x, y) - mean;
+						tmp = tmp * tmp;
+						moments[band][0] += tmp;
+						moments[band][1] += tmp * tmp;
+					}
+				}
+			}
+		});
+		double variance = 0, fourthMean = 0;
+		for (int band = 0; band < bands; band++) {
+			variance += moments[band][0];
+			fourthMean += moments[band][1];
+		}
+		variance /= n;
+		fourthMean /= n;
+		if (fourthMean == 0)
+			return 0;
+		return variance / (Math.pow(fourthMean, 0.25));
+	}
+
+	/**
+	 * Computes the contrast of the rows [start, end) in the selected mode
+	 *
+	 * @param contrastArray
+	 *            receives the contrast, it starts at row first
+	 */
+	private void calculateContrast(double[] contrastArray, int first,
+			int start, int end) {
+		if (mode == SUMMED_AREA && getGrayImage() instanceof ByteProcessor) {
+			calculateContrastSummedArea(contrastArray, first, start, end);
+		} else {
+			calculateContrastDirect(contrastArray, first, start, end);
+		}
+	}
+
+	private void calculateContrastDirect(double[] contrastArray, int first,
+			int start, int end) {
 		int width = getGrayImage().getWidth();
 		int height = getGrayImage().getHeight();
-		double[] contrastArray = new double[width * height];
-		byte[] pixels = new byte[width * height];
 
 		int offset, i;
-		double max = 0, min = 256;
 		Rectangle r = new Rectangle();
 
-		for (int y = 0; y < (height - 0); y++) {
-			offset = y * width;
+		for (int y = start; y < end; y++) {
+			offset = (y - first) * width;
 			for (int x = 0; x < (width - 0); x++) {
 				i = offset + x;
 				configRect(r, x, y, margin, width, height);
-				contrastArray[i] += calculateContrast(r);
-				if (contrastArray[i] > max)
-					max = contrastArray[i];
-				if (contrastArray[i] < min)
-					min = contrastArray[i];
+				contrastArray[i] = calculateContrast(r);
 			}
 		}
-		// Normalize contrast values
-		double longInt = max - min;
-		for (i = 0; i < contrastArray.length; i++) {
-			double num = ((contrastArray[i] - min) / longInt) * 255;
-			pixels[i] = (byte) (num);
+	}
+
+	/**
+	 * Computes the contrast like the direct mode but keeps, for every column,
+	 * the sums of v, v^2, v^3 and v^4 over the rows of the current window.
+	 * Each row of column sums is turned into a prefix sum so that the four raw
+	 * moments of any window are obtained with two lookups. Pixels of the
+	 * window that fall outside of the image count as 0 like getPixel does.
+	 * The central moments are derived exactly from the integer sums, the
+	 * direct mode accumulates rounding errors instead: a pixel whose contrast
+	 * is the maximum can be one level apart between the two modes.
+	 */
+	private void calculateContrastSummedArea(double[] contrastArray,
+			int first, int start, int end) {
+		int width = getGrayImage().getWidth();
+		int height = getGrayImage().getHeight();
+
+		long[] column1 = new long[width];
+		long[] column2 = new long[width];
+		long[] column3 = new long[width];
+		long[] column4 = new long[width];
+		long[] prefix1 = new long[width + 1];
+		long[] prefix2 = new long[width + 1];
+		long[] prefix3 = new long[width + 1];
+		long[] prefix4 = new long[width + 1];
+		int[] row = new int[width];
+
+		Rectangle r = new Rectangle();
+		// rows currently accumulated in the column sums: [top, bottom)
+		configRect(r, 0, start, margin, width, height);
+		int top = r.y, bottom = r.y;
+
+		for (int y = start; y < end; y++) {
+			configRect(r, 0, y, margin, width, height);
+			int windowTop = r.y;
+			int windowBottom = Math.min(r.y + r.height, height);
+			while (bottom < windowBottom) {
+				addRow(bottom++, row, column1, column2, column3, column4, 1);
+			}
+			while (top < windowTop) {
+				addRow(top++, row, column1, column2, column3, column4, -1);
+			}
+			for (int x = 0; x < width; x++) {
+				prefix1[x + 1] = prefix1[x] + column1[x];
+				prefix2[x + 1] = prefix2[x] + column2[x];
+				prefix3[x + 1] = prefix3[x] + column3[x];
+				prefix4[x + 1] = prefix4[x] + column4[x];
+			}
+
+			int offset = (y - first) * width;
+			for (int x = 0; x < width; x++) {
+				configRect(r, x, y, margin, width, height);
+				int left = r.x;
+				int right = Math.min(r.x + r.width, width);
+				long n = (long) r.width * r.height;
+				long s1 = prefix1[right] - prefix1[left];
+				long s2 = prefix2[right] - prefix2[left];
+				long s3 = prefix3[right] - prefix3[left];
+				long s4 = prefix4[right] - prefix4[left];
+				contrastArray[offset + x] = contrastFromMoments(n, s1, s2, s3,
+						s4);
+			}
 		}
+	}
 
-		return pixels;
+	private void addRow(int y, int[] row, long[] column1, long[] column2,
+			long[] column3, long[] column4, int sign) {
+		int width = row.length;
+		byte[] bytes = (byte[]) getGrayImage().getPixels();
+		int offset = y * width;
+		for (int x = 0; x < width; x++) {
+			row[x] = bytes[offset + x] & 0xff;
+		}
+		for (int x = 0; x < width; x++) {
+			long v = row[x];
+			long v2 = v * v;
+			column1[x] += sign * v;
+			column2[x] += sign * v2;
+			column3[x] += sign * v2 * v;
+			column4[x] += sign * v2 * v2;
+		}
+	}
+
+	/**
+	 * Derives the contrast of a window from its raw moments
+	 *
+	 * @param n
+	 *            number of pixels in the window
+	 * @param s1
+	 *            sum of the values
+	 * @param s2
+	 *            sum of the squared values
+	 * @param s3
+	 *            sum of the cubed values
+	 * @param s4
+	 *            sum of the values to the fourth power
+	 * @return
+	 */
+	private double contrastFromMoments(long n, long s1, long s2, long s3,
+			long s4) {
+		// n^2 times the variance and n^4 times the fourth moment around the
+		// mean are integers, they are computed exactly: a flat window gives
+		// 0/0 like the direct computation and the fourth moment does not lose
+		// its digits to cancellation
+		double n2 = (double) n * n;
+		double variance;
+		double fourthMean;
+		if (n <= PRODUCT_LIMIT) {
+			long varianceTimesN2 = n * s2 - s1 * s1;
+			if (varianceTimesN2 == 0)
+				return Double.NaN;
+			variance = varianceTimesN2 / n2;
+			if (n * 255 < EXACT_LONG_LIMIT) {
+				// the terms can overflow but the sum is at most
+				// n^4 * 255^4 / 12, the wrapped arithmetic still gives it
+				long fourthTimesN4 = n * n * n * s4 - 4 * n * n * s1 * s3 + 6
+						* n * s1 * s1 * s2 - 3 * s1 * s1 * s1 * s1;
+				fourthMean = fourthTimesN4 / (n2 * n2);
+			} else {
+				// the same sum on 128 bits: every term is the product of two
+				// longs, kept as its high and low words
+				long a = n * n * n;
+				long hi = multiplyHigh(a, s4);
+				long lo = a * s4;
+				long b = 4 * n * s1;
+				long c = n * s3;
+				long term = b * c;
+				hi -= multiplyHigh(b, c) + (unsignedLess(lo, term) ? 1 : 0);
+				lo -= term;
+				b = 6 * n * s1;
+				c = s1 * s2;
+				term = b * c;
+				lo += term;
+				hi += multiplyHigh(b, c) + (unsignedLess(lo, term) ? 1 : 0);
+				b = 3 * s1 * s1;
+				c = s1 * s1;
+				term = b * c;
+				hi -= multiplyHigh(b, c) + (unsignedLess(lo, term) ? 1 : 0);
+				lo -= term;
+				fourthMean = (hi * TWO_TO_64 + unsignedToDouble(lo))
+						/ (n2 * n2);
+			}
+		} else {
+			BigInteger bn = BigInteger.valueOf(n);
+			BigInteger b1 = BigInteger.valueOf(s1);
+			BigInteger varianceTimesN2 = bn.multiply(BigInteger.valueOf(s2))
+					.subtract(b1.multiply(b1));
+			if (varianceTimesN2.signum() == 0)
+				return Double.NaN;
+			BigInteger fourthTimesN4 = bn.pow(3)
+					.multiply(BigInteger.valueOf(s4))
+					.subtract(BigInteger.valueOf(4).multiply(bn.pow(2))
+							.multiply(b1).multiply(BigInteger.valueOf(s3)))
+					.add(BigInteger.valueOf(6).multiply(bn).multiply(b1.pow(2))
+							.multiply(BigInteger.valueOf(s2)))
+					.subtract(BigInteger.valueOf(3).multiply(b1.pow(4)));
+			variance = varianceTimesN2.doubleValue() / n2;
+			fourthMean = fourthTimesN4.doubleValue() / (n2 * n2);
+		}
+		return variance / (Math.pow(fourthMean, 0.25));
+	}
+
+	/**
+	 * @return the high word of the 128 bits product of x and y, like
+	 *         Math.multiplyHigh
+	 */
+	private static long multiplyHigh(long x, long y) {
+		long x1 = x >> 32;
+		long x2 = x & 0xFFFFFFFFL;
+		long y1 = y >> 32;
+		long y2 = y & 0xFFFFFFFFL;
+		long z2 = x2 * y2;
+		long t = x1 * y2 + (z2 >>> 32);
+		long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+		long z0 = t >> 32;
+		return x1 * y1 + z0 + (z1 >> 32);
+	}
+
+	/**
+	 * @return true if a is below b, both read as unsigned
+	 */
+	private static boolean unsignedLess(long a, long b) {
+		return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+	}
+
+	private static double unsignedToDouble(long value) {
+		if (value >= 0)
+			return value;
+		return (value >>> 1) * 2.0 + (value & 1);
 	}
 
 	private double calculateContrast(Rectangle r) {
@@ -105,6 +568,19 @@ public class TamuraContrastFilter {
 		r.setBounds(xc, yc, wc, hc);
 	}
 
+	public boolean isLowMemory() {
+		return lowMemory;
+	}
+
+	/**
+	 * @param lowMemory
+	 *            if true the contrast is computed twice instead of being kept
+	 *            for every pixel: 1 byte per pixel instead of 9
+	 */
+	public void setLowMemory(boolean lowMemory) {
+		this.lowMemory = lowMemory;
+	}
+
 	public ImageProcessor getGrayImage() {
 		return grayImage;
 	}
@@ -117,4 +593,33 @@ public class TamuraContrastFilter {
 		this.margin = margin;
 	}
 
+	/**
+	 * @return the executor that processes the bands of rows, the shared one if
+	 *         none was set
+	 */
+	public BandExecutor getExecutor() {
+		if (executor == null)
+			return BandExecutor.getShared();
+		return executor;
+	}
+
+	public void setExecutor(BandExecutor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the computation mode, DIRECT or SUMMED_AREA
+	 */
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * @param mode
+	 *            the computation mode, DIRECT or SUMMED_AREA
+	 */
+	public void setMode(int mode) {
+		this.mode = mode;
+	}
+
 }
@@ -1,85 +1,306 @@
 package org.cheminfo.scripting.image.filters;
 
-import ij.ImagePlus;
-import ij.gui.NewImage;
-import ij.process.Blitter;
 import ij.process.ImageProcessor;
 
 public class TamuraDirectionalityFilter {
+	/**
+	 * The angles are computed with Math.atan
+	 */
+	public static final int EXACT = 0;
+	/**
+	 * The angles are computed with a polynomial approximation of atan, about
+	 * twice as fast. A few pixels (less than 1%) may be one level off.
+	 */
+	public static final int FAST = 1;
+
 	private ImageProcessor grayImage;
+	private BandExecutor executor;
+	private int threshold = 12;
+	private int accuracy = EXACT;
 
 	public TamuraDirectionalityFilter(ImageProcessor grayImage) {
 		this.grayImage = grayImage;
 	}
 
+	/**
+	 * Computes the direction of the gradient of every pixel that is not on the
+	 * border, straight from the gray levels in one pass. The gradients are the
+	 * ones of the 3x3 masks { -1,0,1, -1,0,1, -1,0,1 } (horizontal) and {
+	 * 1,1,1, 0,0,0, -1,-1,-1 } (vertical).
+	 *
+	 * @return the direction, 0-255 for 0-PI
+	 */
 	public byte[] performExtraction() {
-		int width = getGrayImage().getWidth();
-		int height = getGrayImage().getHeight();
+		final int width = getGrayImage().getWidth();
+		final int height = getGrayImage().getHeight();
+		final byte[] gray = grayBytes();
+		final byte[] pixels = new byte[width * height];
+		final boolean fast = accuracy == FAST;
+
+		getExecutor().execute(height, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				int offset, i;
+				for (int y = Math.max(start, 1); y < Math.min(end, height - 1); y++) {
+					offset = y * width;
+					for (int x = 1; x < width - 1; x++) {
+						i = offset + x;
+						if (fast)
+							pixels[i] = (byte) fastDirection(gray, width, i);
+						else
+							pixels[i] = (byte) direction(gray, width, i);
+					}
+				}
+			}
+		});
+
+		return pixels;
+	}
+
+	/**
+	 * Computes the normalized direction of an inner pixel straight from the
+	 * gray levels, the result is the same as with the two convolved float
+	 * images of performExtraction
+	 *
+	 * @param pixels
+	 *            the gray image
+	 * @param width
+	 *            the width of the gray image
+	 * @param i
+	 *            index of a pixel that is not on the border
+	 * @return the direction (0-255)
+	 */
+	static int direction(byte[] pixels, int width, int i) {
+		int up = i - width;
+		int down = i + width;
+		int left = (pixels[up - 1] & 0xff) + (pixels[i - 1] & 0xff)
+				+ (pixels[down - 1] & 0xff);
+		int right = (pixels[up + 1] & 0xff) + (pixels[i + 1] & 0xff)
+				+ (pixels[down + 1] & 0xff);
+		int top = (pixels[up - 1] & 0xff) + (pixels[up] & 0xff)
+				+ (pixels[up + 1] & 0xff);
+		int bottom = (pixels[down - 1] & 0xff) + (pixels[down] & 0xff)
+				+ (pixels[down + 1] & 0xff);
+		double valueH = right - left;
+		double valueV = top - bottom;
+		double angle;
+		if (valueH == 0 && valueV == 0)
+			angle = 0;
+		else if (valueH == 0)
+			angle = Math.PI;
+		else
+			angle = Math.PI / 2 + Math.atan(valueV / valueH);
+		return (int) ((angle / Math.PI) * 255);
+	}
+
+	/**
+	 * Same as direction but with a polynomial approximation of atan, the
+	 * result differs by at most one level when the exact value is very close
+	 * to an integer
+	 */
+	static int fastDirection(byte[] pixels, int width, int i) {
+		int up = i - width;
+		int down = i + width;
+		int left = (pixels[up - 1] & 0xff) + (pixels[i - 1] & 0xff)
+				+ (pixels[down - 1] & 0xff);
+		int right = (pixels[up + 1] & 0xff) + (pixels[i + 1] & 0xff)
+				+ (pixels[down + 1] & 0xff);
+		int top = (pixels[up - 1] & 0xff) + (pixels[up] & 0xff)
+				+ (pixels[up + 1] & 0xff);
+		int bottom = (pixels[down - 1] & 0xff) + (pixels[down] & 0xff)
+				+ (pixels[down + 1] & 0xff);
+		int valueH = right - left;
+		int valueV = top - bottom;
+		if (valueH == 0)
+			return valueV == 0 ? 0 : 255;
+		double angle = Math.PI / 2 + atan(valueV, valueH);
+		return (int) ((angle / Math.PI) * 255);
+	}
 
-		// Horizontal Results
-		ImagePlus iPlusH = NewImage.createFloatImage("Horizontal", width,
-				height, 1, NewImage.FILL_BLACK);
-		ImageProcessor imgProcH = iPlusH.getProcessor();
-		imgProcH.copyBits(getGrayImage(), 0, 0, Blitter.COPY);
-		// Vertical Results
-		ImagePlus iPlusV = NewImage.createFloatImage("Vertical", width, height,
-				1, NewImage.FILL_BLACK);
-		ImageProcessor imgProcV = iPlusV.getProcessor();
-		imgProcV.copyBits(getGrayImage(), 0, 0, Blitter.COPY);
-		// Masks
-		/*
-		 * int[] maskH = { -1,0,1, -2,0,2, -1,0,1 }; int[] maskV = { 1,2,1,
-		 * 0,0,0, -1,-2,-1 };
-		 */
-		int[] maskH = { -1, 0, 1, -1, 0, 1, -1, 0, 1 };
-		int[] maskV = { 1, 1, 1, 0, 0, 0, -1, -1, -1 };
-
-		// Calculate magnitude
-		imgProcV.convolve3x3(maskV);
-		imgProcH.convolve3x3(maskH);
-		/*
-		 * iPlusH.show(); iPlusV.show();
-		 */
-
-		int offset, i;
-
-		double[] values = new double[width * height];
-		float[] deltaV = (float[]) imgProcV.getPixels();
-		float[] deltaH = (float[]) imgProcH.getPixels();
-
-		double valueH;
-		double valueV;
-		double angle = 0;
-
-		for (int y = 1; y < height - 1; y++) {
-			offset = y * width;
-			for (int x = 1; x < width - 1; x++) {
-				i = offset + x;
-				valueH = (double) deltaH[i];
-				valueV = (double) deltaV[i];
-
-				if (valueH == 0 && valueV == 0)
-					angle = 0;
-				else if (valueH == 0)
-					// angle = 0;
-					angle = Math.PI;
-				else {
-					angle = Math.PI / 2 + Math.atan(valueV / valueH);
+	/**
+	 * @return an approximation of atan(v / h), h is not 0. The error is less
+	 *         than 1e-5 radian.
+	 */
+	static double atan(int v, int h) {
+		int a = Math.abs(v);
+		int b = Math.abs(h);
+		double angle;
+		if (a <= b) {
+			angle = atanUnit((double) a / b);
+		} else {
+			angle = Math.PI / 2 - atanUnit((double) b / a);
+		}
+		return (v < 0) != (h < 0) ? -angle : angle;
+	}
+
+	/**
+	 * Minimax polynomial of atan on [0, 1]
+	 */
+	private static double atanUnit(double t) {
+		double t2 = t * t;
+		return t
+				* (0.9998660 + t2
+						* (-0.3302995 + t2
+								* (0.1801410 + t2 * (-0.0851330 + t2 * 0.0208351))));
+	}
+
+	/**
+	 * Computes the histogram of the gradient directions of the pixels of a
+	 * region, only the pixels whose gradient magnitude (|H| + |V|) / 2 is at
+	 * least the threshold are counted. The direction is taken between 0 and PI
+	 * like in performExtraction.
+	 *
+	 * @param bins
+	 *            number of bins between 0 and PI
+	 * @param region
+	 * @return the histogram of the directions
+	 */
+	public int[] histogram(final int bins, final TextureRegion region) {
+		final int width = getGrayImage().getWidth();
+		int height = getGrayImage().getHeight();
+		final byte[] pixels = grayBytes();
+		final boolean fast = accuracy == FAST;
+		final int first = region.firstRow(1);
+		int rows = Math.max(region.endRow(height, 1) - first, 0);
+		BandExecutor executor = getExecutor();
+		final int[][] histograms = new int[executor.getBandCount(rows)][];
+		executor.execute(rows, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				int[] histogram = new int[bins];
+				histograms[band] = histogram;
+				int firstColumn = region.firstColumn(1);
+				int endColumn = region.endColumn(width, 1);
+				for (int y = first + start; y < first + end; y++) {
+					int offset = y * width;
+					int up = offset - width;
+					int down = offset + width;
+					for (int x = firstColumn; x < endColumn; x++) {
+						if (!region.contains(x, y))
+							continue;
+						int left = (pixels[up + x - 1] & 0xff)
+								+ (pixels[offset + x - 1] & 0xff)
+								+ (pixels[down + x - 1] & 0xff);
+						int right = (pixels[up + x + 1] & 0xff)
+								+ (pixels[offset + x + 1] & 0xff)
+								+ (pixels[down + x + 1] & 0xff);
+						int top = (pixels[up + x - 1] & 0xff)
+								+ (pixels[up + x] & 0xff)
+								+ (pixels[up + x + 1] & 0xff);
+						int bottom = (pixels[down + x - 1] & 0xff)
+								+ (pixels[down + x] & 0xff)
+								+ (pixels[down + x + 1] & 0xff);
+						int valueH = right - left;
+						int valueV = top - bottom;
+						if (Math.abs(valueH) + Math.abs(valueV) < 2 * threshold)
+							continue;
+						double angle;
+						if (valueH == 0)
+							angle = 0;
+						else if (fast)
+							angle = Math.PI / 2 + atan(valueV, valueH);
+						else
+							angle = Math.PI / 2
+									+ Math.atan((double) valueV / valueH);
+						int bin = (int) (angle * bins / Math.PI);
+						histogram[bin < bins ? bin : 0]++;
+					}
 				}
-				values[i] = angle;
+			}
+		});
+		int[] histogram = new int[bins];
+		for (int[] bandHistogram : histograms) {
+			for (int i = 0; i < bins; i++) {
+				histogram[i] += bandHistogram[i];
 			}
 		}
-		// Normalize values
-		byte[] pixels = new byte[width * height];
-		for (i = 0; i < values.length; i++) {
-			double num = (values[i] / Math.PI) * 255;
-			pixels[i] = (byte) (num);
+		return histogram;
+	}
+
+	/**
+	 * Computes the Tamura directionality of a region from the histogram of its
+	 * directions: 1 minus the spread of the directions around the highest
+	 * peak, normalized to be between 0 (no dominant direction or no edge) and
+	 * 1 (a single direction)
+	 *
+	 * @param bins
+	 *            number of bins of the histogram of the directions
+	 * @param region
+	 * @return the directionality
+	 */
+	public double directionality(int bins, TextureRegion region) {
+		int[] histogram = histogram(bins, region);
+		long total = 0;
+		int peak = 0;
+		for (int i = 0; i < bins; i++) {
+			total += histogram[i];
+			if (histogram[i] > histogram[peak])
+				peak = i;
 		}
+		if (total == 0)
+			return 0;
+		// directions are modulo PI so the distance to the peak is at most PI/2
+		double spread = 0;
+		for (int i = 0; i < bins; i++) {
+			int distance = Math.abs(i - peak);
+			distance = Math.min(distance, bins - distance);
+			double angle = distance * Math.PI / bins;
+			spread += angle * angle * histogram[i];
+		}
+		spread /= total * (Math.PI / 2) * (Math.PI / 2);
+		return 1 - spread;
+	}
 
-		return pixels;
+	public int getAccuracy() {
+		return accuracy;
+	}
+
+	/**
+	 * @param accuracy
+	 *            EXACT or FAST
+	 */
+	public void setAccuracy(int accuracy) {
+		this.accuracy = accuracy;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param threshold
+	 *            minimal gradient magnitude of the pixels that are counted in
+	 *            the histogram of the directions
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
 	}
 
 	public ImageProcessor getGrayImage() {
 		return grayImage;
 	}
+
+	/**
+	 * @return the pixels of the gray image, the images that are not 8 bits
+	 *         are converted first without scaling: their values above 255
+	 *         count as 255
+	 */
+	private byte[] grayBytes() {
+		ImageProcessor gray = getGrayImage();
+		if (!(gray.getPixels() instanceof byte[]))
+			gray = gray.convertToByte(false);
+		return (byte[]) gray.getPixels();
+	}
+
+	/**
+	 * @return the executor that processes the bands of rows, the shared one if
+	 *         none was set
+	 */
+	public BandExecutor getExecutor() {
+		if (executor == null)
+			return BandExecutor.getShared();
+		return executor;
+	}
+
+	public void setExecutor(BandExecutor executor) {
+		this.executor = executor;
+	}
 }
@@ -1,58 +1,111 @@
 package org.cheminfo.scripting.image.filters;
 
-import ij.ImagePlus;
-import ij.ImageStack;
-import ij.gui.NewImage;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
 
 import org.cheminfo.scripting.image.EIJ;
 
 public class TamutaTextureFilter {
+	// rows of the coarseness computed from one integral image
+	private static final int CHUNK_ROWS = 128;
+
 	/**
 	 * Apply a tamura filter
 	 */
 	public static void tamura(EIJ eij) {
-		/* Tamura Coarseness */
-
-		TamuraCoarsenessFilter tamuraCoarseness = new TamuraCoarsenessFilter(
-				eij.getProcessor().convertToByte(true));
-		byte[] coarseness = tamuraCoarseness.performExtraction();
-
-		ImagePlus iCoarseness = NewImage.createByteImage("Coarseness", eij.getWidth(),
-				eij.getHeight(), 1, NewImage.FILL_BLACK);
-		iCoarseness.getProcessor().setPixels(coarseness);
-
-		/* Tamura Contrast */
-
-		TamuraContrastFilter tamuraContrast = new TamuraContrastFilter(eij
-				.getProcessor().convertToByte(true));
-		byte[] contrast = tamuraContrast.performExtraction();
-
-		ImagePlus iContrast = NewImage.createByteImage("Contrast", eij.getWidth(),
-				eij.getHeight(), 1, NewImage.FILL_BLACK);
-		iContrast.getProcessor().setPixels(contrast);
+		ImageProcessor gray = eij.getProcessor().convertToByte(true);
+		eij.setProcessor(tamura(gray));
+	}
 
-		TamuraDirectionalityFilter tamuraDirectionality = new TamuraDirectionalityFilter(
-				eij.getProcessor().convertToByte(true));
-		byte[] directionality = tamuraDirectionality.performExtraction();
+	/**
+	 * Computes the tamura texture of a gray image. Directionality, coarseness
+	 * and contrast are the red, green and blue components of a color that is
+	 * directly converted to gray, the same way ImageJ converts an RGB image.
+	 * Only the contrast, which is normalized with its global min / max, is
+	 * computed for the whole image beforehand, in the pixels of the result.
+	 * The two other features are computed pixel by pixel in the same pass as
+	 * the conversion, which replaces the contrast of each pixel by its gray.
+	 * Besides the gray image and the result, only the integral images of a
+	 * few rows are kept.
+	 *
+	 * @param gray
+	 *            an 8 bits image
+	 * @return the gray level of every pixel
+	 */
+	public static ImageProcessor tamura(ImageProcessor gray) {
+		final int width = gray.getWidth();
+		final int height = gray.getHeight();
+		final byte[] pixels = (byte[]) gray.getPixels();
 
-		ImagePlus iDirectionality = NewImage.createByteImage("Directionality",
-				eij.getWidth(), eij.getHeight(), 1, NewImage.FILL_BLACK);
-		iDirectionality.getProcessor().setPixels(directionality);
+		/* Tamura Contrast, normalized in two passes straight to bytes */
+		TamuraContrastFilter tamuraContrast = new TamuraContrastFilter(gray);
+		tamuraContrast.setLowMemory(true);
+		final byte[] result = tamuraContrast.performExtraction();
 
-		ImageStack stack1 = new ImageStack(eij.getWidth(), eij.getHeight());
-		stack1.addSlice("directionality", iDirectionality.getProcessor());
+		/* Tamura Coarseness */
+		final TamuraCoarsenessFilter tamuraCoarseness = new TamuraCoarsenessFilter(
+				gray);
+		// the neighbourhoods of a pixel are at most this number of rows away
+		final int halo = 1 << tamuraCoarseness.getMaxWindowSize();
 
-		ImageStack stack2 = new ImageStack(eij.getWidth(), eij.getHeight());
-		stack2.addSlice("coarseness", iCoarseness.getProcessor());
+		double[] weights = ColorProcessor.getWeightingFactors();
+		final double rw = weights[0];
+		final double gw = weights[1];
+		final double bw = weights[2];
 
-		ImageStack stack3 = new ImageStack(eij.getWidth(), eij.getHeight());
-		stack3.addSlice("contrast", iContrast.getProcessor());
+		BandExecutor.getShared().execute(height, new BandExecutor.Band() {
+			public void process(int band, int start, int end) {
+				long[] integral = null;
+				for (int first = start; first < end; first += CHUNK_ROWS) {
+					int last = Math.min(first + CHUNK_ROWS, end);
+					int top = Math.max(first - halo, 0);
+					Rectangle area = new Rectangle(0, top, width, Math.min(
+							last + halo, height) - top);
+					integral = tamuraCoarseness.integralImage(area, integral);
+					for (int y = first; y < last; y++) {
+						int offset = y * width;
+						boolean innerRow = y > 0 && y < height - 1;
+						for (int x = 0; x < width; x++) {
+							int i = offset + x;
+							int red = 0;
+							if (innerRow && x > 0 && x < width - 1) {
+								red = TamuraDirectionalityFilter.direction(
+										pixels, width, i) & 0xff;
+							}
+							int green = tamuraCoarseness.coarseness(integral,
+									area, x, y) & 0xff;
+							int blue = result[i] & 0xff;
+							result[i] = (byte) (int) (red * rw + green * gw
+									+ blue * bw + 0.5);
+						}
+					}
+				}
+			}
+		});
+		return new ByteProcessor(width, height, result, null);
+	}
 
-		ij.plugin.RGBStackMerge merge = new ij.plugin.RGBStackMerge();
-		ImageStack result = merge.mergeStacks(eij.getWidth(), eij.getHeight(), 1, stack1, stack2,
-				stack3, true);
-		int[] pixels = (int[]) result.getPixels(1);
-		eij.getProcessor().setPixels(pixels);
-		eij.grey();
+	/**
+	 * Computes the three Tamura features of a region of a gray image without
+	 * building the filtered images
+	 *
+	 * @param gray
+	 *            an 8 bits image
+	 * @param region
+	 * @param bins
+	 *            number of bins of the histogram of the directions
+	 * @return coarseness, contrast and directionality
+	 */
+	public static double[] features(ImageProcessor gray, TextureRegion region,
+			int bins) {
+		double coarseness = new TamuraCoarsenessFilter(gray)
+				.coarseness(region);
+		double contrast = new TamuraContrastFilter(gray).contrast(region);
+		double directionality = new TamuraDirectionalityFilter(gray)
+				.directionality(bins, region);
+		return new double[] { coarseness, contrast, directionality };
 	}
 }
@@ -0,0 +1,70 @@
+package org.cheminfo.scripting.image.filters;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * The pixels of an image on which texture features are computed: a rectangle
+ * and optionally a mask of the same size, like the ones of an ImageJ Roi. The
+ * neighbourhood of a pixel may extend outside of the region.
+ */
+public class TextureRegion {
+	private final Rectangle bounds;
+	private final byte[] mask;
+
+	public TextureRegion(Rectangle bounds, ImageProcessor mask) {
+		this.bounds = new Rectangle(bounds);
+		if (mask != null) {
+			this.mask = (byte[]) mask.convertToByte(false).getPixels();
+		} else {
+			this.mask = null;
+		}
+	}
+
+	public TextureRegion(Roi roi) {
+		this(roi.getBounds(), roi.getMask());
+	}
+
+	/**
+	 * The whole image
+	 */
+	public TextureRegion(int width, int height) {
+		this(new Rectangle(0, 0, width, height), null);
+	}
+
+	/**
+	 * @return first row of the region inside the image, at least margin
+	 */
+	int firstRow(int margin) {
+		return Math.max(bounds.y, margin);
+	}
+
+	/**
+	 * @return the row after the last row of the region inside the image
+	 */
+	int endRow(int height, int margin) {
+		return Math.min(bounds.y + bounds.height, height - margin);
+	}
+
+	int firstColumn(int margin) {
+		return Math.max(bounds.x, margin);
+	}
+
+	int endColumn(int width, int margin) {
+		return Math.min(bounds.x + bounds.width, width - margin);
+	}
+
+	/**
+	 * @return if the pixel, that is known to be in the bounds, is in the mask
+	 */
+	boolean contains(int x, int y) {
+		return mask == null
+				|| mask[(y - bounds.y) * bounds.width + x - bounds.x] != 0;
+	}
+
+	public Rectangle getBounds() {
+		return new Rectangle(bounds);
+	}
+}
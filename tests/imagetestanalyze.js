@@ -0,0 +1,10 @@
+clearLog();
+var image = IJ.load("/tests/images/BIO1.JPG");
+var hsb = image.splitHSB();
+var mask = hsb[2].createMask({method:"Li"});
+var rois = mask.getRois({minLength:100});
+
+jexport("full", hsb[1].analyze(rois));
+jexport("compact", hsb[1].analyze(rois, {histogram:"compact"}));
+jexport("summary", hsb[1].analyze(rois, {measurements:"bounds,surface,mean", threads:2}));
+jexport("channels", image.analyze(rois, {measurements:"surface,channels", histogram:"compact"}));
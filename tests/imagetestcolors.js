@@ -17,7 +17,9 @@ for ( var i = 0; i < size; i++) {
 		name: list[i],
 		width: image.getWidth(), 
 		height: image.getHeight(), 
-		colors: image.getColor()
+		colors: image.getColor(),
+		exactColors: image.getColor({bits:24}),
+		estimatedColors: image.getColor({estimate:true})
 		}
 	);
 }
@@ -0,0 +1,11 @@
+clearLog();
+var list = dir("/tests/images", {
+	filter : ".*(jpg|JPG|png)"
+});
+var result = IJ.hashBatch(list, {method:"dct", bits:64, minSize:256});
+var hashes = result.getHashes();
+var errors = result.getErrors();
+for (var i = 0; i < list.length; i++) {
+	jexport(list[i], errors[i] == null ? hashes[i] : errors[i]);
+}
+jexport("similar", IJ.similarHashes(hashes, 10));
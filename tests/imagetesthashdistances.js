@@ -0,0 +1,10 @@
+clearLog();
+var names = ["BIO1.JPG", "BW.jpg", "S.png", "wheel.jpg", "wheel2.jpg", "wheel2.png", "wheelR.jpg", "wheelR.png"];
+var hashes = [];
+for (var i = 0; i < names.length; i++) {
+	hashes.push(IJ.load("/tests/images/" + names[i]).getHash());
+}
+
+jexport("distances", IJ.hashDistances(hashes[3], hashes));
+jexport("nearest", IJ.nearestHashes(hashes[3], hashes, 3));
+jexport("similar", IJ.similarHashes(hashes, 10, {threads:2}));
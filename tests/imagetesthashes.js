@@ -0,0 +1,11 @@
+clearLog();
+var image = IJ.load("/tests/images/wheel.jpg");
+var rotated = IJ.load("/tests/images/wheelR.jpg");
+
+var methods = ["average", "difference", "dct", "wavelet"];
+for (var i = 0; i < methods.length; i++) {
+	for (var bits = 64; bits <= 256; bits *= 4) {
+		var options = {method:methods[i], bits:bits};
+		jexport(methods[i] + bits, IJ.hashDistance(image.getHash(options), rotated.getHash(options)));
+	}
+}
@@ -0,0 +1,15 @@
+clearLog();
+var list = dir("/tests/images", {
+	filter : ".*(jpg|JPG|png)"
+});
+var hashes = [];
+for (var i = 0; i < list.length; i++) {
+	hashes.push(IJ.load(list[i]).getHash());
+}
+
+var index = IJ.createHashIndex(hashes);
+IJ.saveHashIndex(index, "/tests/images/temp/hashes.idx");
+var loaded = IJ.loadHashIndex("/tests/images/temp/hashes.idx");
+jexport("size", loaded.size());
+jexport("nearest", loaded.nearest(hashes[0], 3));
+jexport("within", loaded.within(hashes[0], 10));
@@ -0,0 +1,9 @@
+clearLog();
+var image = IJ.load("/tests/images/BW.jpg");
+
+var mask = image.createMask();
+mask.open(1).close(3).fillHoles().removeSmallObjects(100);
+jexport("rois", mask.getRois().length);
+
+jexport("eroded", image.createMask().erode(5).getRois().length);
+jexport("dilated", image.createMask().dilate(5).getRois().length);
@@ -0,0 +1,15 @@
+clearLog();
+var folder = "/tests/images/temp/";
+var image = IJ.load("/tests/images/BIO1.JPG");
+var hsb = image.splitHSB();
+
+var mask = hsb[2].createRunLengthMask({method:"Li"});
+jexport("area", mask.getArea());
+jexport("runs", mask.getRunCount());
+jexport("rois", hsb[2].getRois(mask, {minSurface:100}).length);
+
+var border = mask.difference(hsb[2].createRunLengthMask({method:"Otsu"}));
+jexport("border", border.getArea());
+
+image.saveTransparentPng(folder + "RUNLENGTH.png", mask);
+image.paintMask(mask).save(folder + "RUNLENGTH-PAINTED.png");
@@ -0,0 +1,13 @@
+clearLog();
+var folder = "/tests/images/temp/";
+var image = IJ.load("/tests/images/BIO1.JPG");
+var hsb = image.splitHSB();
+var rois = hsb[2].createMask({method:"Li"}).getRois({minLength:100});
+
+var crops = image.splitIterator(rois, {reuse:true});
+while (crops.hasNext()) {
+	var index = crops.getIndex();
+	crops.next().save(folder + "CROP-" + index + ".png");
+}
+
+jexport("saved", image.saveSplit(rois, folder + "SPLIT-", {format:"jpg", quality:90}));
@@ -0,0 +1,6 @@
+clearLog();
+var list = dir("/XTC/images/png", {
+	filter : ".*tif"
+});
+var results = IJ.textureBatch(list, {method:"lbp", format:"png", maxInFlight:8});
+jexport("results", results);
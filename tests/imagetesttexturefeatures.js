@@ -0,0 +1,8 @@
+clearLog();
+var image = IJ.load("/tests/images/BIO1.JPG");
+
+jexport("lbp", image.textureFeatures({method:"lbp", variant:"uniform"}));
+jexport("tamura", image.textureFeatures({method:"tamura"}));
+
+var rois = image.createMask().getRois({minSurface:100});
+jexport("ifh", image.textureFeatures(rois, {method:"ifh", bins:32}));
@@ -0,0 +1,13 @@
+clearLog();
+var folder = "/tests/images/temp/";
+var image = IJ.load("/tests/images/BIO1.JPG");
+var hsb = image.splitHSB();
+
+var mask = hsb[2].createMask({method:"Li"}).fillHoles().watershed({tolerance:0.5});
+mask.save(folder + "WATERSHED.png");
+jexport("rois", mask.getRois({minSurface:100}).length);
+
+var spots = image.split(mask, {minSurface:100});
+jexport("spots", spots.length);
+
+hsb[2].createMask({method:"Li"}).distanceMap().save(folder + "DISTANCE.tif");